@@ -3,39 +3,114 @@
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.io.IOException;
+import java.nio.file.*;
 import java.util.*;
 import java.util.List;
 
 public class GamePanel extends JPanel implements MouseListener, MouseMotionListener {
 
-    private static final int CARD_WIDTH = 80;
-    private static final int CARD_HEIGHT = 110;
-    private static final int H_GAP = 20;
-    private static final int V_GAP = 30;
-    private static final int TOP_MARGIN = 40;
-    private static final int LEFT_MARGIN = 40;
-    private static final int TABLEAU_Y = TOP_MARGIN + CARD_HEIGHT + 40;
-    private static final int TABLEAU_V_OFFSET = 25;
+    // pile positions and card sizes for the current panel size and screen; replaced by
+    // checkLayout() when either changes
+    private BoardLayout layout = new BoardLayout(1024, 720, 1);
+    private GraphicsConfiguration layoutConfig;
+    private double layoutScale = 1;
+    private Font titleFont;
+    private Font placeholderFont;
+
+    // sprite margin plus the highlight stroke around a card
+    private static final int DAMAGE_MARGIN = CardSprites.PAD + 2;
+
+    private static final Color BACKGROUND_TOP = new Color(30, 10, 60);
+    private static final Color BACKGROUND_BOTTOM = new Color(80, 10, 120);
+    private static final Color STAR_COLOR = new Color(255, 255, 255, 40);
+    private static final Color TITLE_COLOR = new Color(240, 230, 255);
+    private static final Color HINT_COLOR = new Color(255, 215, 90, 220);
+    private static final Stroke HINT_STROKE = new BasicStroke(3f);
 
     private List<Pile> tableauPiles;
     private List<Pile> foundationPiles;
     private Pile stockPile;
     private Pile wastePile;
 
-    private MoveManager moveManager;
+    // the rules engine owns the game; piles and cards are views refreshed by syncPiles()
+    private KlondikeState state;
+    // immutable mirror of state, advanced move by move; this is what leaves the EDT
+    private GameState position;
+    // earlier positions by move number, one slot per move moveManager retains, so undo, redo and
+    // jumps step back to a kept GameState; keptIndex says which move number a slot holds
+    private GameState[] kept = new GameState[0];
+    private int[] keptIndex = new int[0];
+    private Pile[] piles = new Pile[KlondikeState.PILE_COUNT];
 
+    private MoveManager moveManager;
+    private long dealNumber;
+    // draw-one or draw-three; in draw-three the top three waste cards are fanned
+    private int drawCount = 1;
+
+    private Path journalFile;
+    private GameJournal journal;
+
+    // difficulty ratings for draw-one and draw-three, memory-mapped when the files exist
+    private final DealIndex[] dealIndexes = new DealIndex[2];
+    private DealIndex.Kind dealKind = DealIndex.Kind.ANY;
+
+    // hints are searched off the EDT; the panel only looks rankings up by position
+    private final HintEngine hintEngine = new HintEngine(
+            (searched, ranked) -> SwingUtilities.invokeLater(() -> hintReady(searched, ranked)));
+    private int hintMove = MoveManager.NONE;
+    private boolean hintPending;
+
+    // auto-finish: the moves are committed at once and played back as staggered slides, while
+    // the piles show autoView, which advances as each card lands
+    private static final int AUTO_STAGGER_MS = 70;
+    private static final int AUTO_FLIGHT_MS = 260;
+    private boolean autoFinish = true;
+    // foundation plays plus the stock clicks that turn up waste cards
+    private final int[] autoMoves = new int[4 * KlondikeState.MAX_MOVES];
+    private int autoCount;
+    private int autoLanded;
+    private long autoFlying;
+    private KlondikeState autoView;
+
+    private Image background;
+    private int backgroundEmptyMask;
+    private final Rectangle clip = new Rectangle();
+
+    private static final int HIT_COLUMNS = 7;
+    private final Pile[] hitTopRow = new Pile[HIT_COLUMNS];
+    private final Pile[] hitTableau = new Pile[HIT_COLUMNS];
+    private int hitOriginX, hitStride, hitTopY, hitTableauY;
+
+    // the lifted cards sit in dragPile while dragging; draggingCards is its view, null otherwise
+    private final Pile dragPile = new Pile(Pile.Type.TABLEAU, -1, 0, 0);
     private List<Card> draggingCards;
     private Pile dragSourcePile;
     private int dragOffsetX;
     private int dragOffsetY;
     private int dragX;
     private int dragY;
-
-    // flip animation state
-    private javax.swing.Timer flipTimer = null;
-    private Card flippingCard = null;      
-    private int flippingX = 0, flippingY = 0;
-    private int flipStep = 0;             
+    // the spacing of the stack in the column it was lifted from
+    private int dragStep;
+
+    // flips, slides and auto-finish flights all run on this one frame clock
+    private final Animator animator = new Animator(this);
+    private static final int FLIP_MS = 540;
+    private static final int FLIP_FACE_MS = 360;
+    private static final Color FLIP_SHADE = new Color(0, 0, 0, 90);
+
+    // sparkles trail the cursor while dragging and fade out after the drop
+    private final GlitterParticles glitter = new GlitterParticles();
+    private boolean glitterRunning;
+
+    // frame, input latency and allocation counters; the overlay is toggled with F3
+    private final PaintMetrics metrics = new PaintMetrics();
+    private boolean metricsOverlay;
+    private javax.swing.Timer overlayTimer;
+    private static final Font OVERLAY_FONT = new Font(Font.MONOSPACED, Font.PLAIN, 11);
+    private static final Color OVERLAY_BACKGROUND = new Color(0, 0, 0, 150);
+    private static final int OVERLAY_WIDTH = 300;
+    private static final int OVERLAY_HEIGHT = 66;
 
     public GamePanel() {
         setPreferredSize(new Dimension(1024, 720));
@@ -43,130 +118,415 @@ public class GamePanel extends JPanel implements MouseListener, MouseMotionListe
 
         tableauPiles = new ArrayList<>();
         foundationPiles = new ArrayList<>();
+        state = new KlondikeState();
         moveManager = new MoveManager();
 
         addMouseListener(this);
         addMouseMotionListener(this);
 
+        getInputMap(WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke(KeyEvent.VK_F3, 0), "metricsOverlay");
+        getActionMap().put("metricsOverlay", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                setMetricsOverlay(!metricsOverlay);
+            }
+        });
+
         newGame();
     }
 
+    public PaintMetrics getMetrics() {
+        return metrics;
+    }
+
+    // the overlay refreshes twice a second rather than from paint, which would repaint forever
+    public void setMetricsOverlay(boolean enabled) {
+        metricsOverlay = enabled;
+        if (enabled && overlayTimer == null) {
+            overlayTimer = new javax.swing.Timer(500, e -> repaintOverlay());
+            overlayTimer.start();
+        } else if (!enabled && overlayTimer != null) {
+            overlayTimer.stop();
+            overlayTimer = null;
+        }
+        repaintOverlay();
+    }
+
+    private void repaintOverlay() {
+        repaint(getWidth() - OVERLAY_WIDTH - 10, 8, OVERLAY_WIDTH + 4, OVERLAY_HEIGHT + 4);
+    }
+
+    private void drawMetricsOverlay(Graphics2D g2) {
+        int x = getWidth() - OVERLAY_WIDTH - 8;
+        int y = 10;
+        g2.setColor(OVERLAY_BACKGROUND);
+        g2.fillRoundRect(x, y, OVERLAY_WIDTH, OVERLAY_HEIGHT, 8, 8);
+        g2.setColor(Color.WHITE);
+        g2.setFont(OVERLAY_FONT);
+        String[] lines = metrics.summary();
+        for (int i = 0; i < lines.length; i++) {
+            g2.drawString(lines[i], x + 8, y + 16 + i * 14);
+        }
+    }
+
     public void newGame() {
-        if (flipTimer != null && flipTimer.isRunning()) {
-            flipTimer.stop();
-            flipTimer = null;
-            flippingCard = null;
+        newGame(pickDeal());
+    }
+
+    // a deal of the chosen kind from the rating index, or any random deal without one
+    private long pickDeal() {
+        DealIndex index = dealIndexes[drawCount == 1 ? 0 : 1];
+        if (index == null || dealKind == DealIndex.Kind.ANY) return Deals.randomDealNumber();
+        long deal = index.pick(dealKind);
+        return deal < 0 ? Deals.randomDealNumber() : deal;
+    }
+
+    public void newGame(long dealNumber) {
+        if (journalFile != null) {
+            // queued behind the final writes of the old journal; nothing here waits on the disk
+            closeJournal();
+            GameJournal.archive(journalFile, this.dealNumber);
         }
+        deal(dealNumber);
+        if (journalFile != null) startJournal();
+    }
+
+    private void deal(long dealNumber) {
+        stopAutoFinish();
+        animator.cancelAll();
 
         tableauPiles.clear();
         foundationPiles.clear();
-        moveManager.clear();
         draggingCards = null;
+        dragPile.clear();
         dragSourcePile = null;
-        flippingCard = null;
-        flipStep = 0;
 
-        stockPile = new Pile(Pile.Type.STOCK, LEFT_MARGIN, TOP_MARGIN);
-        wastePile = new Pile(Pile.Type.WASTE, LEFT_MARGIN + CARD_WIDTH + H_GAP, TOP_MARGIN);
+        stockPile = new Pile(Pile.Type.STOCK, KlondikeState.STOCK, 0, 0);
+        wastePile = new Pile(Pile.Type.WASTE, KlondikeState.WASTE, 0, 0);
+        piles[KlondikeState.STOCK] = stockPile;
+        piles[KlondikeState.WASTE] = wastePile;
 
         for (int i = 0; i < 4; i++) {
-            int x = LEFT_MARGIN + (3 + i) * (CARD_WIDTH + H_GAP);
-            int y = TOP_MARGIN;
-            foundationPiles.add(new Pile(Pile.Type.FOUNDATION, x, y));
+            Pile f = new Pile(Pile.Type.FOUNDATION, KlondikeState.FOUNDATION + i, 0, 0);
+            foundationPiles.add(f);
+            piles[f.getIndex()] = f;
         }
 
         for (int i = 0; i < 7; i++) {
-            int x = LEFT_MARGIN + i * (CARD_WIDTH + H_GAP);
-            int y = TABLEAU_Y;
-            tableauPiles.add(new Pile(Pile.Type.TABLEAU, x, y));
+            Pile t = new Pile(Pile.Type.TABLEAU, KlondikeState.TABLEAU + i, 0, 0);
+            tableauPiles.add(t);
+            piles[t.getIndex()] = t;
         }
 
+        applyLayout();
+
         Deck deck = new Deck();
-        deck.shuffle();
+        deck.shuffle(dealNumber);
+        this.dealNumber = dealNumber;
 
-        for (int col = 0; col < 7; col++) {
-            Pile pile = tableauPiles.get(col);
-            for (int row = 0; row <= col; row++) {
-                Card card = deck.draw();
-                if (card == null) break;
-                if (row == col) {
-                    card.setFaceUp(true);
-                } else {
-                    card.setFaceUp(false);
-                }
-                pile.addCard(card);
+        byte[] order = new byte[KlondikeState.CARD_COUNT];
+        int n = 0;
+        while (!deck.isEmpty()) {
+            Card c = deck.draw();
+            order[n++] = (byte) c.getId();
+        }
+        state.setDrawCount(drawCount);
+        state.deal(order);
+        moveManager.clear(state);
+        resetPositions();
+        positionChanged();
+
+        syncPiles();
+        background = null;
+        repaint();
+    }
+
+    public long getDealNumber() {
+        return dealNumber;
+    }
+
+    public int getDrawCount() {
+        return drawCount;
+    }
+
+    // switching between draw-one and draw-three starts a new game
+    public void setDrawCount(int count) {
+        if (count != 1 && count != 3) throw new IllegalArgumentException("draw " + count);
+        if (count == drawCount) return;
+        drawCount = count;
+        newGame();
+    }
+
+    // ==== Deal index ====
+
+    // maps the rating indexes found in the directory; nothing is searched or read up front
+    public void enableDealIndex(Path directory) {
+        for (int draw : new int[] {1, 3}) {
+            Path file = directory.resolve(DealIndex.fileName(draw));
+            if (!Files.exists(file)) continue;
+            try {
+                DealIndex index = DealIndex.open(file);
+                if (index.getDrawCount() == draw) dealIndexes[draw == 1 ? 0 : 1] = index;
+                else System.err.println("deal index " + file + " is for draw " + index.getDrawCount());
+            } catch (IOException ex) {
+                System.err.println("could not open deal index: " + ex);
             }
         }
+    }
 
-        while (!deck.isEmpty()) {
-            Card c = deck.draw();
-            c.setFaceUp(false);
-            stockPile.addCard(c);
+    public boolean hasDealIndex() {
+        return dealIndexes[drawCount == 1 ? 0 : 1] != null;
+    }
+
+    // the kind of deal the next new game picks
+    public void setDealKind(DealIndex.Kind kind) {
+        dealKind = kind;
+    }
+
+    // how far the top waste card sits right of the pile for a waste of the given size
+    private int wasteFan(int size) {
+        return drawCount == 3 ? (Math.max(1, Math.min(3, size)) - 1) * layout.wasteFan : 0;
+    }
+
+    // distance between the cards of a tableau pile; long columns are squeezed to fit
+    private int rowStep(Pile pile) {
+        return layout.tableauOffset(pile.size());
+    }
+
+    // ==== Layout ====
+
+    // a new panel size or screen scale rebuilds the layout once; the sprites for the new card
+    // size are then rendered on first use and kept until the next change
+    private boolean checkLayout() {
+        GraphicsConfiguration gc = getGraphicsConfiguration();
+        if (gc != layoutConfig) {
+            // getDefaultTransform() allocates, so the scale is only read when the screen changes
+            layoutConfig = gc;
+            layoutScale = gc == null ? 1 : gc.getDefaultTransform().getScaleX();
+        }
+        int w = Math.max(1, getWidth());
+        int h = Math.max(1, getHeight());
+        if (layout.fits(w, h, layoutScale)) return false;
+        layout = new BoardLayout(w, h, layoutScale);
+        applyLayout();
+        return true;
+    }
+
+    private void applyLayout() {
+        for (Pile p : piles) p.setPosition(layout.pileX(p.getIndex()), layout.pileY(p.getIndex()));
+        titleFont = new Font("Serif", Font.BOLD, layout.titleSize);
+        placeholderFont = new Font("Serif", Font.PLAIN, Math.max(8, layout.titleSize * 9 / 14));
+        CardSprites.setScale(layout.scale);
+        buildHitIndex();
+        background = null;
+    }
+
+    // ==== Journal ====
+
+    // journals every game into the directory, resuming the unfinished game found there
+    public void enableJournal(Path directory) {
+        journalFile = directory.resolve(GameJournal.CURRENT);
+        if (Files.exists(journalFile)) {
+            try {
+                GameJournal.Replay replay = GameJournal.load(journalFile);
+                drawCount = replay.state.getDrawCount();
+                deal(replay.dealNumber);
+                state.copyFrom(replay.state);
+                moveManager = replay.history;
+                resetPositions();
+                positionChanged();
+                syncPiles();
+                repaint();
+                journal = GameJournal.append(journalFile, replay.validBytes);
+                return;
+            } catch (IOException ex) {
+                System.err.println("could not resume journal: " + ex);
+            }
         }
+        startJournal();
+    }
 
+    private void startJournal() {
+        journal = GameJournal.create(journalFile, dealNumber, drawCount);
+    }
+
+    // queues the final flush and sync of the journal without waiting for it
+    public void closeJournal() {
+        if (journal == null) return;
+        journal.close();
+        journal = null;
+    }
+
+    private void commitMove(int move) {
+        moveManager.pushMove(move, state);
+        if (journal != null) journal.recordMove(move);
+        position = position.apply(move);
+        keepPosition();
+        positionChanged();
+    }
+
+    // replaces the position with a copy of the given one from the current deal and clears the history
+    public void setPosition(KlondikeState position) {
+        stopAutoFinish();
+        if (journal != null) {
+            // an arbitrary position cannot be replayed from the deal, so this game is not journaled
+            closeJournal();
+            GameJournal.discard(journalFile);
+        }
+        state.copyFrom(position);
+        drawCount = state.getDrawCount();
+        moveManager.clear(state);
+        resetPositions();
+        positionChanged();
+        draggingCards = null;
+        dragPile.clear();
+        dragSourcePile = null;
+        syncPiles();
         repaint();
     }
 
+    // Zobrist key of the current position
+    public long getPositionKey() {
+        return state.hash();
+    }
+
+    // copy of the current position, e.g. for KlondikeSolver
+    public KlondikeState getStateSnapshot() {
+        return state.copy();
+    }
+
+    // the current position as an immutable value, safe to keep or hand to another thread
+    public GameState getPosition() {
+        return position;
+    }
+
+    // whether a card is face up in the position the piles show
+    private boolean isFaceUp(Card c) {
+        return (autoView != null ? autoView : state).isFaceUp(c.getId());
+    }
+
+    // rebuilds the pile views from the engine state
+    private void syncPiles() {
+        KlondikeState view = autoView != null ? autoView : state;
+        for (Pile pile : piles) {
+            pile.clear();
+            int p = pile.getIndex();
+            int len = view.length(p);
+            for (int i = 0; i < len; i++) {
+                int id = view.cardAt(p, i);
+                pile.addCard(Card.of(id));
+            }
+        }
+    }
+
     // ==== Rendering ====
 
     @Override
     protected void paintComponent(Graphics g) {
-        super.paintComponent(g);
+        metrics.frameStart();
+        if (checkLayout()) repaint();
+        // the background layer covers the whole panel, so no super.paintComponent fill
+        g.drawImage(backgroundLayer(), 0, 0, layout.width, layout.height, null);
 
-        Graphics2D g2 = (Graphics2D) g.create();
+        // drawn straight into the Swing graphics: a drag frame allocates nothing
+        Graphics2D g2 = (Graphics2D) g;
         g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 
-        Paint old = g2.getPaint();
-        GradientPaint gp = new GradientPaint(0, 0, new Color(30, 10, 60),
-                getWidth(), getHeight(), new Color(80, 10, 120));
-        g2.setPaint(gp);
-        g2.fillRect(0, 0, getWidth(), getHeight());
-        g2.setPaint(old);
+        // only piles touching the repaint region are drawn
+        clip.setBounds(0, 0, getWidth(), getHeight());
+        g.getClipBounds(clip);
 
-        g2.setColor(new Color(255, 255, 255, 40));
-        for (int i = 0; i < 40; i++) {
-            int sx = (i * 53) % Math.max(1, getWidth());
-            int sy = (i * 97) % Math.max(1, getHeight());
-            g2.fillOval(sx, sy, 4, 4);
+        if (isDirty(stockPile)) drawPileCards(g2, stockPile, true);  // as deck visual
+        if (isDirty(wastePile)) drawPileCards(g2, wastePile, false);
+        for (Pile f : foundationPiles) {
+            if (isDirty(f)) drawPileCards(g2, f, false);
+        }
+        for (Pile t : tableauPiles) {
+            if (isDirty(t)) drawTableauPile(g2, t);
         }
 
-        g2.setColor(new Color(240, 230, 255));
-        g2.setFont(new Font("Serif", Font.BOLD, 28));
-        g2.drawString("Whimsical Magic Solitaire", LEFT_MARGIN, 30);
-
-        drawPilePlaceholder(g2, stockPile);
-        drawPilePlaceholder(g2, wastePile);
-        for (Pile f : foundationPiles) drawPilePlaceholder(g2, f);
-        for (Pile t : tableauPiles) drawTableauPlaceholder(g2, t);
-
-        drawPileCards(g2, stockPile, true);  // as deck visual
-        drawPileCards(g2, wastePile, false);
-        for (Pile f : foundationPiles) drawPileCards(g2, f, false);
-        for (Pile t : tableauPiles) drawTableauPile(g2, t);
-
-        if (draggingCards != null && !draggingCards.isEmpty()) {
-            drawDragGlitter(g2);
+        if (hintMove != MoveManager.NONE && draggingCards == null) {
+            drawHint(g2);
         }
 
+        glitter.paint(g2);
+
         if (draggingCards != null && !draggingCards.isEmpty()) {
             int x = dragX - dragOffsetX;
             int y = dragY - dragOffsetY;
             for (int i = 0; i < draggingCards.size(); i++) {
                 Card c = draggingCards.get(i);
-                c.draw(g2, x, y + i * TABLEAU_V_OFFSET, CARD_WIDTH, CARD_HEIGHT, true);
+                c.draw(g2, x, y + i * dragStep, layout.cardWidth, layout.cardHeight, true, true);
             }
         }
 
-        if (flippingCard != null) {
-            boolean showFace = (flipStep >= 6); // show face in later steps
-            flippingCard.draw(g2, flippingX, flippingY, CARD_WIDTH, CARD_HEIGHT, false);
-            if (!showFace) {
-                g2.setColor(new Color(0, 0, 0, 90));
-                g2.fillRoundRect(flippingX, flippingY, CARD_WIDTH, CARD_HEIGHT, 16, 16);
-            }
+        animator.paint(g2);
+
+        if (metricsOverlay) drawMetricsOverlay(g2);
+        metrics.frameEnd();
+    }
+
+    private boolean isDirty(Pile pile) {
+        int width = layout.cardWidth + (pile == wastePile ? wasteFan(pile.size()) : 0);
+        int height = layout.cardHeight;
+        if (pile.getType() == Pile.Type.TABLEAU && pile.size() > 1) {
+            height += (pile.size() - 1) * rowStep(pile);
+        }
+        int m = DAMAGE_MARGIN;
+        return pile.getX() - m < clip.x + clip.width && pile.getX() + width + m > clip.x
+                && pile.getY() - m < clip.y + clip.height && pile.getY() + height + m > clip.y;
+    }
+
+    // The static layer: gradient, stars, title and the outlines of empty piles, in device pixels.
+    // Rebuilt with the layout, on a new game, or when the set of empty piles changes.
+    private Image backgroundLayer() {
+        int empty = emptyPileMask();
+        if (background == null || empty != backgroundEmptyMask) {
+            int w = layout.width;
+            int h = layout.height;
+            int dw = (int) Math.ceil(w * layout.scale);
+            int dh = (int) Math.ceil(h * layout.scale);
+            GraphicsConfiguration gc = getGraphicsConfiguration();
+            background = gc != null ? gc.createCompatibleImage(dw, dh, Transparency.OPAQUE)
+                    : new java.awt.image.BufferedImage(dw, dh, java.awt.image.BufferedImage.TYPE_INT_RGB);
+            backgroundEmptyMask = empty;
+
+            Graphics2D g2 = (Graphics2D) background.getGraphics();
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g2.scale(layout.scale, layout.scale);
+            paintBackground(g2, w, h);
+            g2.dispose();
+        }
+        return background;
+    }
+
+    private int emptyPileMask() {
+        int mask = 0;
+        for (Pile p : piles) {
+            if (p.isEmpty()) mask |= 1 << p.getIndex();
+        }
+        return mask;
+    }
+
+    private void paintBackground(Graphics2D g2, int w, int h) {
+        g2.setPaint(new GradientPaint(0, 0, BACKGROUND_TOP, w, h, BACKGROUND_BOTTOM));
+        g2.fillRect(0, 0, w, h);
+
+        g2.setColor(STAR_COLOR);
+        for (int i = 0; i < 40; i++) {
+            int sx = (i * 53) % w;
+            int sy = (i * 97) % h;
+            g2.fillOval(sx, sy, 4, 4);
         }
 
-        g2.dispose();
+        g2.setColor(TITLE_COLOR);
+        g2.setFont(titleFont);
+        g2.drawString("Whimsical Magic Solitaire", layout.left, layout.titleBaseline);
+
+        drawPilePlaceholder(g2, stockPile);
+        drawPilePlaceholder(g2, wastePile);
+        for (Pile f : foundationPiles) drawPilePlaceholder(g2, f);
+        for (Pile t : tableauPiles) drawTableauPlaceholder(g2, t);
     }
 
     private void drawPilePlaceholder(Graphics2D g2, Pile pile) {
@@ -176,11 +536,12 @@ public class GamePanel extends JPanel implements MouseListener, MouseMotionListe
 
         g2.setColor(new Color(255, 255, 255, 30));
         g2.setStroke(new BasicStroke(2f));
-        g2.drawRoundRect(x, y, CARD_WIDTH, CARD_HEIGHT, 16, 16);
+        g2.drawRoundRect(x, y, layout.cardWidth, layout.cardHeight, layout.arc, layout.arc);
 
         if (pile.getType() == Pile.Type.FOUNDATION) {
-            g2.setFont(new Font("Serif", Font.PLAIN, 18));
-            g2.drawString("★", x + CARD_WIDTH / 2 - 6, y + CARD_HEIGHT / 2);
+            g2.setFont(placeholderFont);
+            FontMetrics fm = g2.getFontMetrics();
+            g2.drawString("★", x + (layout.cardWidth - fm.stringWidth("★")) / 2, y + layout.cardHeight / 2);
         }
     }
 
@@ -190,7 +551,7 @@ public class GamePanel extends JPanel implements MouseListener, MouseMotionListe
         int y = pile.getY();
         g2.setColor(new Color(255, 255, 255, 30));
         g2.setStroke(new BasicStroke(2f));
-        g2.drawRoundRect(x, y, CARD_WIDTH, CARD_HEIGHT, 16, 16);
+        g2.drawRoundRect(x, y, layout.cardWidth, layout.cardHeight, layout.arc, layout.arc);
     }
 
 
@@ -208,22 +569,30 @@ public class GamePanel extends JPanel implements MouseListener, MouseMotionListe
                 int ox = x + i / 2;
                 int oy = y + i / 3;
                 Card backDummy = cards.get(0);
-                backDummy.draw(g2, ox, oy, CARD_WIDTH, CARD_HEIGHT, false);
+                backDummy.draw(g2, ox, oy, layout.cardWidth, layout.cardHeight, false, false);
             }
             return;
         }
 
-        Card top = pile.peekTop();
+        // cards flying off during an auto-finish uncover the ones below them
+        int topIndex = cards.size() - 1;
+        while (topIndex >= 0 && isFlying(cards.get(topIndex))) topIndex--;
+        Card top = topIndex < 0 ? null : cards.get(topIndex);
+        int step = rowStep(pile);
         for (int i = 0; i < cards.size(); i++) {
             Card c = cards.get(i);
             boolean highlight = (c == top);
             if (pile.getType() == Pile.Type.TABLEAU) {
-                int yPos = pile.getY() + i * TABLEAU_V_OFFSET;
-                if (draggingCards != null && draggingCards.contains(c)) continue;
-                c.draw(g2, pile.getX(), yPos, CARD_WIDTH, CARD_HEIGHT, highlight);
+                int yPos = pile.getY() + i * step;
+                c.draw(g2, pile.getX(), yPos, layout.cardWidth, layout.cardHeight, isFaceUp(c), highlight);
+            } else if (pile == wastePile && drawCount == 3) {
+                int fanned = topIndex - Math.min(3, topIndex + 1);
+                if (i > fanned && i <= topIndex) {
+                    c.draw(g2, x + (i - fanned - 1) * layout.wasteFan, y, layout.cardWidth, layout.cardHeight, true, highlight);
+                }
             } else {
-                if (i == cards.size() - 1) {
-                    c.draw(g2, x, y, CARD_WIDTH, CARD_HEIGHT, highlight);
+                if (i == topIndex) {
+                    c.draw(g2, x, y, layout.cardWidth, layout.cardHeight, true, highlight);
                 }
             }
         }
@@ -233,23 +602,41 @@ public class GamePanel extends JPanel implements MouseListener, MouseMotionListe
         List<Card> cards = pile.getCards();
         int x = pile.getX();
         int baseY = pile.getY();
+        int step = rowStep(pile);
         for (int i = 0; i < cards.size(); i++) {
             Card c = cards.get(i);
-            if (draggingCards != null && draggingCards.contains(c)) continue;
-            int y = baseY + i * TABLEAU_V_OFFSET;
-            c.draw(g2, x, y, CARD_WIDTH, CARD_HEIGHT, false);
+            if (isFlying(c)) continue;
+            int y = baseY + i * step;
+            c.draw(g2, x, y, layout.cardWidth, layout.cardHeight, isFaceUp(c), false);
+        }
+    }
+
+    // advances the particles with the frame time until the last one has faded
+    private class GlitterAnimation extends Animator.Animation {
+        double lastMs;
+
+        @Override
+        protected boolean step(double elapsedMs, Rectangle damage) {
+            glitter.addBounds(damage);
+            glitter.update((float) (elapsedMs - lastMs));
+            lastMs = elapsedMs;
+            glitter.addBounds(damage);
+            glitterRunning = glitter.isAlive();
+            return glitterRunning;
+        }
+
+        @Override
+        protected void cancelled() {
+            glitter.clear();
+            glitterRunning = false;
         }
     }
 
-    private void drawDragGlitter(Graphics2D g2) {
-        Random rand = new Random(123 + System.identityHashCode(this) + System.currentTimeMillis()/200 );
-        for (int i = 0; i < 24; i++) {
-            int sx = dragX + rand.nextInt(60) - 30;
-            int sy = dragY + rand.nextInt(60) - 30;
-            int size = 1 + rand.nextInt(4);
-            int alpha = 120 + rand.nextInt(135);
-            g2.setColor(new Color(255, 255, 255, Math.min(255, alpha)));
-            g2.fillOval(sx, sy, size, size);
+    private void startGlitter() {
+        glitter.emitFrom(dragX, dragY);
+        if (!glitterRunning) {
+            glitterRunning = true;
+            animator.start(new GlitterAnimation());
         }
     }
 
@@ -257,34 +644,41 @@ public class GamePanel extends JPanel implements MouseListener, MouseMotionListe
 
     @Override
     public void mousePressed(MouseEvent e) {
+        if (autoView != null) {
+            // a click during the playback skips to the finished game
+            stopAutoFinish();
+            checkWinCondition();
+            return;
+        }
         int mx = e.getX();
         int my = e.getY();
 
         draggingCards = null;
+        dragPile.clear();
         dragSourcePile = null;
 
-        if (isInsidePile(mx, my, stockPile)) {
+        if (topRowPileAt(mx, my) == stockPile) {
             handleStockClick();
             return;
         }
 
         Pile p = findPileForDrag(mx, my);
         if (p != null) startDraggingFromPile(p, mx, my);
+        if (draggingCards != null) startGlitter();
     }
 
     private Pile findPileForDrag(int mx, int my) {
-        for (Pile t : tableauPiles) {
+        Pile t = tableauPileAt(mx, my);
+        if (t != null) {
             int index = getTableauCardIndexAt(t, mx, my);
             if (index != -1) {
                 Card c = t.getCards().get(index);
-                if (!c.isFaceUp()) return null; // cannot drag face-down
+                if (!isFaceUp(c)) return null; // cannot drag face-down
                 return t;
             }
         }
-        if (isInsideTopCard(mx, my, wastePile) && !wastePile.isEmpty()) return wastePile;
-        for (Pile f : foundationPiles) {
-            if (isInsideTopCard(mx, my, f) && !f.isEmpty()) return f;
-        }
+        Pile p = topRowPileAt(mx, my);
+        if (p != null && p != stockPile && !p.isEmpty()) return p;
         return null;
     }
 
@@ -293,20 +687,22 @@ public class GamePanel extends JPanel implements MouseListener, MouseMotionListe
             int index = getTableauCardIndexAt(pile, mx, my);
             if (index == -1) return;
             Card clicked = pile.getCards().get(index);
-            if (!clicked.isFaceUp()) return;
-            draggingCards = pile.removeFromIndex(index);
+            if (!isFaceUp(clicked)) return;
+            dragStep = rowStep(pile);
+            pile.moveTo(dragPile, index);
+            draggingCards = dragPile.getCards();
             dragSourcePile = pile;
             int cardX = pile.getX();
-            int cardY = pile.getY() + index * TABLEAU_V_OFFSET;
+            int cardY = pile.getY() + index * dragStep;
             dragOffsetX = mx - cardX;
             dragOffsetY = my - cardY;
         } else {
             Card top = pile.peekTop();
-            if (top == null || !top.isFaceUp()) return;
-            draggingCards = new ArrayList<>();
-            draggingCards.add(pile.removeTop());
+            if (top == null || !isFaceUp(top)) return;
+            pile.moveTo(dragPile, pile.size() - 1);
+            draggingCards = dragPile.getCards();
             dragSourcePile = pile;
-            dragOffsetX = mx - pile.getX();
+            dragOffsetX = mx - pile.getX() - (pile == wastePile ? wasteFan(pile.size() + 1) : 0);
             dragOffsetY = my - pile.getY();
         }
         dragX = mx; dragY = my;
@@ -316,214 +712,432 @@ public class GamePanel extends JPanel implements MouseListener, MouseMotionListe
     @Override
     public void mouseDragged(MouseEvent e) {
         if (draggingCards == null) return;
+        metrics.inputEvent(e.getWhen());
+        int oldX = dragX - dragOffsetX;
+        int oldY = dragY - dragOffsetY;
         dragX = e.getX();
         dragY = e.getY();
-        repaint();
+        int newX = dragX - dragOffsetX;
+        int newY = dragY - dragOffsetY;
+
+        glitter.emitFrom(dragX, dragY);
+
+        // union of the old and new stack bounds; the glitter repaints itself on the frame clock
+        int height = layout.cardHeight + (draggingCards.size() - 1) * dragStep;
+        int m = DAMAGE_MARGIN;
+        int x0 = Math.min(oldX, newX) - m;
+        int y0 = Math.min(oldY, newY) - m;
+        int x1 = Math.max(oldX, newX) + layout.cardWidth + m;
+        int y1 = Math.max(oldY, newY) + height + m;
+        repaint(x0, y0, x1 - x0, y1 - y0);
     }
 
     @Override
     public void mouseReleased(MouseEvent e) {
         if (draggingCards == null || dragSourcePile == null) return;
+        metrics.inputEvent(e.getWhen());
         int mx = e.getX();
         int my = e.getY();
 
         Pile target = findDropTarget(mx, my);
-        if (target != null && canDropOnPile(draggingCards, dragSourcePile, target)) {
-            Card flippedCard = null;
-            if (dragSourcePile.getType() == Pile.Type.TABLEAU && !dragSourcePile.isEmpty()) {
-                Card top = dragSourcePile.peekTop();
-                if (!top.isFaceUp()) {
-                    top.setFaceUp(true);
-                    flippedCard = top;
-                }
-            }
-            target.addCards(draggingCards);
-            Move move = new Move(dragSourcePile, target, draggingCards.size(), flippedCard);
-            moveManager.pushMove(move);
-            checkWinCondition();
-        } else {
-            dragSourcePile.addCards(draggingCards);
+        int move = target == null ? 0
+                : Move.of(dragSourcePile.getIndex(), target.getIndex(), draggingCards.size());
+        boolean moved = false;
+        glitter.stopEmitting();
+        if (target != null && state.isLegal(move)) {
+            commitMove(state.apply(move));
+            moved = true;
         }
 
         draggingCards = null;
+        dragPile.clear();
         dragSourcePile = null;
+        syncPiles();
         repaint();
+        if (moved && !startAutoFinish()) checkWinCondition();
     }
 
     private Pile findDropTarget(int mx, int my) {
-        for (Pile t : tableauPiles) {
-            if (isInsidePile(mx, my, t)) return t;
-        }
-        for (Pile f : foundationPiles) {
-            if (isInsidePile(mx, my, f)) return f;
-        }
+        Pile t = tableauPileAt(mx, my);
+        if (t != null) return t;
+        Pile p = topRowPileAt(mx, my);
+        if (p != null && p.getType() == Pile.Type.FOUNDATION) return p;
         return null;
     }
 
-    private boolean isInsidePile(int mx, int my, Pile pile) {
-        int x = pile.getX();
-        int y = pile.getY();
-        int height = CARD_HEIGHT;
-        if (pile.getType() == Pile.Type.TABLEAU) {
-            int size = pile.size();
-            if (size > 1) height = CARD_HEIGHT + (size - 1) * TABLEAU_V_OFFSET;
+    // ==== Hit testing ====
+
+    // Piles sit on a grid of equal-width columns in two rows, so a point maps to its column by
+    // division and to a tableau card by its distance from the column top. Rebuilt whenever
+    // pile positions change.
+    private void buildHitIndex() {
+        hitOriginX = Integer.MAX_VALUE;
+        for (Pile p : piles) hitOriginX = Math.min(hitOriginX, p.getX());
+        hitStride = layout.cardWidth + layout.gap;
+        hitTopY = stockPile.getY();
+        hitTableauY = tableauPiles.get(0).getY();
+
+        Arrays.fill(hitTopRow, null);
+        Arrays.fill(hitTableau, null);
+        for (Pile p : piles) {
+            int col = (p.getX() - hitOriginX) / hitStride;
+            if (p.getType() == Pile.Type.TABLEAU) hitTableau[col] = p;
+            else hitTopRow[col] = p;
         }
-        return mx >= x && mx <= x + CARD_WIDTH && my >= y && my <= y + height;
     }
 
-    private boolean isInsideTopCard(int mx, int my, Pile pile) {
-        if (pile.isEmpty()) return false;
-        return isInsidePile(mx, my, pile);
+    private int columnAt(int mx) {
+        int dx = mx - hitOriginX;
+        if (dx < 0) return -1;
+        int col = dx / hitStride;
+        if (col >= HIT_COLUMNS || dx - col * hitStride > layout.cardWidth) return -1;
+        return col;
     }
 
-    private int getTableauCardIndexAt(Pile pile, int mx, int my) {
-        List<Card> cards = pile.getCards();
-        if (cards.isEmpty()) return -1;
-        int x = pile.getX();
-        int baseY = pile.getY();
-        for (int i = cards.size() - 1; i >= 0; i--) {
-            int y = baseY + i * TABLEAU_V_OFFSET;
-            Rectangle rect = new Rectangle(x, y, CARD_WIDTH, CARD_HEIGHT);
-            if (rect.contains(mx, my)) return i;
+    private Pile topRowPileAt(int mx, int my) {
+        if (my < hitTopY || my > hitTopY + layout.cardHeight) return null;
+        int col = columnAt(mx);
+        Pile p = col < 0 ? null : hitTopRow[col];
+        if (drawCount == 3 && (p == null || p == wastePile)) {
+            // the fanned waste reaches into the gap beside it
+            int dx = mx - wastePile.getX() - wasteFan(wastePile.size());
+            return dx >= 0 && dx <= layout.cardWidth ? wastePile : p;
         }
-        return -1;
+        return p;
+    }
+
+    // the tableau pile whose full column, including the fanned cards, contains the point
+    private Pile tableauPileAt(int mx, int my) {
+        if (my < hitTableauY) return null;
+        int col = columnAt(mx);
+        if (col < 0) return null;
+        Pile t = hitTableau[col];
+        if (t == null) return null;
+        int height = layout.cardHeight + Math.max(0, t.size() - 1) * rowStep(t);
+        return my <= t.getY() + height ? t : null;
+    }
+
+    private int getTableauCardIndexAt(Pile pile, int mx, int my) {
+        int size = pile.size();
+        if (size == 0) return -1;
+        int dx = mx - pile.getX();
+        int dy = my - pile.getY();
+        if (dx < 0 || dx >= layout.cardWidth || dy < 0) return -1;
+        int step = rowStep(pile);
+        int i = Math.min(size - 1, dy / step);
+        return dy < i * step + layout.cardHeight ? i : -1;
     }
 
     private void handleStockClick() {
-        if (!stockPile.isEmpty()) {
-            Card c = stockPile.removeTop();
-            flippingCard = c;
-            flippingX = stockPile.getX();
-            flippingY = stockPile.getY();
-            flipStep = 0;
-            c.setFaceUp(true);
-            wastePile.addCard(c);
-            Move move = new Move(stockPile, wastePile, 1, null);
-            moveManager.pushMove(move);
-            startFlipTimer();
+        int stock = KlondikeState.STOCK;
+        int waste = KlondikeState.WASTE;
+        if (state.length(stock) > 0) {
+            commitMove(state.apply(Move.of(stock, waste, Math.min(drawCount, state.length(stock)))));
+            animator.start(new Flip(Card.of(state.top(waste)), stockPile.getX(), stockPile.getY()));
         } else {
-            if (wastePile.isEmpty()) return;
-            int count = wastePile.size();
-            List<Card> moved = new ArrayList<>();
-            for (int i = 0; i < count; i++) {
-                Card c = wastePile.removeTop();
-                c.setFaceUp(false);
-                moved.add(c);
-                stockPile.addCard(c);
-            }
-            Move move = new Move(wastePile, stockPile, count, null);
-            moveManager.pushMove(move);
+            int count = state.length(waste);
+            if (count == 0) return;
+            commitMove(state.apply(Move.of(waste, stock, count)));
         }
+        syncPiles();
         repaint();
+        startAutoFinish();
     }
 
-    private void startFlipTimer() {
-        if (flipTimer != null && flipTimer.isRunning()) flipTimer.stop();
-        flipTimer = new javax.swing.Timer(60, new ActionListener() {
-            @Override
-            public void actionPerformed(ActionEvent e) {
-                flipStep++;
-                if (flipStep > 8) {
-                    flipTimer.stop();
-                    flipTimer = null;
-                    flippingCard = null;
-                    flipStep = 0;
-                }
-                repaint();
-            }
-        });
-        flipTimer.start();
-    }
+    // the card drawn from the stock turns over in place; quick clicks overlap their flips
+    private class Flip extends Animator.Animation {
+        final Card card;
+        final int x, y;
+        boolean showFace;
 
-    private boolean canDropOnPile(List<Card> movingCards, Pile from, Pile to) {
-        if (movingCards.isEmpty()) return false;
-        Card first = movingCards.get(0);
+        Flip(Card card, int x, int y) {
+            this.card = card;
+            this.x = x;
+            this.y = y;
+        }
 
-        if (to.getType() == Pile.Type.FOUNDATION) {
-            if (movingCards.size() != 1) return false;
-            Card top = to.peekTop();
-            if (top == null) {
-                return first.getRank().value == 1;
-            } else {
-                return first.getSuit() == top.getSuit() &&
-                        first.getRank().value == top.getRank().value + 1;
+        @Override
+        protected boolean step(double elapsedMs, Rectangle damage) {
+            showFace = elapsedMs >= FLIP_FACE_MS;
+            Animator.addDamage(damage, x, y, layout.cardWidth, layout.cardHeight, DAMAGE_MARGIN);
+            return elapsedMs < FLIP_MS;
+        }
+
+        @Override
+        protected void paint(Graphics2D g2) {
+            card.draw(g2, x, y, layout.cardWidth, layout.cardHeight, true, false);
+            if (!showFace) {
+                g2.setColor(FLIP_SHADE);
+                g2.fillRoundRect(x, y, layout.cardWidth, layout.cardHeight, layout.arc, layout.arc);
             }
         }
+    }
 
-        if (to.getType() == Pile.Type.TABLEAU) {
-            Card top = to.peekTop();
-            if (top == null) {
-                return first.getRank().value == 13; 
-            } else {
-                boolean colorOk = first.isRed() != top.isRed();
-                boolean rankOk = first.getRank().value == top.getRank().value - 1;
-                return colorOk && rankOk;
+    // a card moving between two points with ease-out, after an optional delay; onLanded runs
+    // on the frame it arrives
+    private class Slide extends Animator.Animation {
+        final Card card;
+        final int x0, y0, x1, y1;
+        final int delayMs;
+        final Runnable onLanded;
+        int x, y;
+        boolean moving;
+
+        Slide(Card card, int x0, int y0, int x1, int y1, int delayMs, Runnable onLanded) {
+            this.card = card;
+            this.x0 = x = x0;
+            this.y0 = y = y0;
+            this.x1 = x1;
+            this.y1 = y1;
+            this.delayMs = delayMs;
+            this.onLanded = onLanded;
+        }
+
+        @Override
+        protected boolean step(double elapsedMs, Rectangle damage) {
+            double t = (elapsedMs - delayMs) / AUTO_FLIGHT_MS;
+            if (t < 0) return true;
+            if (!moving) {
+                moving = true;
+                autoFlying |= 1L << card.getId();
+            }
+            Animator.addDamage(damage, x, y, layout.cardWidth, layout.cardHeight, DAMAGE_MARGIN);
+            if (t >= 1) {
+                moving = false;
+                autoFlying &= ~(1L << card.getId());
+                onLanded.run();
+                return false;
             }
+            double ease = 1 - (1 - t) * (1 - t);
+            x = (int) Math.round(x0 + (x1 - x0) * ease);
+            y = (int) Math.round(y0 + (y1 - y0) * ease);
+            Animator.addDamage(damage, x, y, layout.cardWidth, layout.cardHeight, DAMAGE_MARGIN);
+            return true;
         }
 
-        return false;
+        @Override
+        protected void paint(Graphics2D g2) {
+            if (moving) card.draw(g2, x, y, layout.cardWidth, layout.cardHeight, true, false);
+        }
     }
 
     // ==== Undo / Redo ====
 
+    // a compound entry such as an auto-finish is undone and redone as a whole
     public void undoMove() {
-        Move move = moveManager.popUndo();
-        if (move == null) {
+        stopAutoFinish();
+        int move = moveManager.popUndo();
+        if (move == MoveManager.NONE) {
             Toolkit.getDefaultToolkit().beep();
             return;
         }
+        while (true) {
+            state.unapply(move);
+            if (journal != null) journal.recordUndo();
+            if (!Move.linked(move)) break;
+            move = moveManager.popUndo();
+        }
+        restorePosition();
+        positionChanged();
+        syncPiles();
+        repaint();
+    }
 
-        int n = move.cardCount;
-        List<Card> temp = new ArrayList<>();
-        for (int i = 0; i < n; i++) {
-            Card c = move.to.removeTop();
-            temp.add(0, c);
+    public void redoMove() {
+        stopAutoFinish();
+        int move = moveManager.popRedo();
+        if (move == MoveManager.NONE) {
+            Toolkit.getDefaultToolkit().beep();
+            return;
+        }
+        while (true) {
+            state.apply(move);
+            // a redo stays on the line the kept positions were recorded on
+            GameState redone = keptAt(moveManager.getIndex());
+            position = redone != null ? redone : position.apply(move);
+            keepPosition();
+            if (journal != null) journal.recordRedo();
+            int next = moveManager.peekRedo();
+            if (next == MoveManager.NONE || !Move.linked(next)) break;
+            move = moveManager.popRedo();
         }
-        move.from.addCards(temp);
+        positionChanged();
+        syncPiles();
+        repaint();
+    }
 
-        if (move.from == stockPile && move.to == wastePile && n == 1) {
-            Card c = move.from.peekTop();
-            if (c != null) c.setFaceUp(false);
-        } else if (move.from == wastePile && move.to == stockPile) {
-            for (Card c : temp) c.setFaceUp(true);
+    // jumps to the position after the given number of moves, anywhere in the retained history
+    public void jumpToMove(int index) {
+        stopAutoFinish();
+        if (index < moveManager.getFirstIndex() || index > moveManager.getLastIndex()) {
+            Toolkit.getDefaultToolkit().beep();
+            return;
         }
+        moveManager.jumpTo(index, state);
+        if (journal != null) journal.recordJump(index);
+        restorePosition();
+        positionChanged();
+        syncPiles();
+        repaint();
+    }
 
-        if (move.flippedCard != null) move.flippedCard.setFaceUp(false);
+    public int getMoveIndex() {
+        return moveManager.getIndex();
+    }
 
-        repaint();
+    // ==== Kept positions ====
+
+    // starts the kept positions over from the current state, e.g. after a deal or a resume
+    private void resetPositions() {
+        int size = moveManager.getCapacity() + 1;
+        if (kept.length != size) {
+            kept = new GameState[size];
+            keptIndex = new int[size];
+        }
+        Arrays.fill(kept, null);
+        Arrays.fill(keptIndex, -1);
+        position = GameState.of(state);
+        keepPosition();
     }
 
-    public void redoMove() {
-        Move move = moveManager.popRedo();
-        if (move == null) {
+    // Records the current position under the current move number. Every move number up to
+    // moveManager's last index is rewritten whenever a new move replaces the line after it,
+    // so a slot whose tag matches always holds a position of the current line.
+    private void keepPosition() {
+        int index = moveManager.getIndex();
+        int slot = index % kept.length;
+        kept[slot] = position;
+        keptIndex[slot] = index;
+    }
+
+    private GameState keptAt(int index) {
+        int slot = index % kept.length;
+        return keptIndex[slot] == index ? kept[slot] : null;
+    }
+
+    // after undo or a jump: the kept position for the new move number, or one built from state
+    // for a move number not seen since the deal or resume
+    private void restorePosition() {
+        GameState back = keptAt(moveManager.getIndex());
+        position = back != null ? back : GameState.of(state);
+        keepPosition();
+    }
+
+    // ==== Hints ====
+
+    // shows the best move for the current position; if the background search has not
+    // finished yet the hint appears when it does
+    public void showHint() {
+        int[] ranked = hintEngine.cached(position);
+        if (ranked == null) {
+            hintPending = true;
+            return;
+        }
+        displayHint(ranked);
+    }
+
+    private void hintReady(GameState searched, int[] ranked) {
+        if (hintPending && searched.equals(position)) displayHint(ranked);
+    }
+
+    private void displayHint(int[] ranked) {
+        hintPending = false;
+        if (ranked.length == 0) {
             Toolkit.getDefaultToolkit().beep();
             return;
         }
+        hintMove = ranked[0];
+        repaint();
+    }
+
+    // every change of position drops the shown hint and restarts the search
+    private void positionChanged() {
+        hintMove = MoveManager.NONE;
+        hintPending = false;
+        hintEngine.analyze(position);
+    }
+
+    private void drawHint(Graphics2D g2) {
+        int from = Move.from(hintMove);
+        int count = Move.count(hintMove);
+        g2.setColor(HINT_COLOR);
+        g2.setStroke(HINT_STROKE);
+        Pile source = piles[from];
+        int first = KlondikeState.isTableau(from) ? Math.max(0, source.size() - count) : 0;
+        int rows = KlondikeState.isTableau(from) ? count : 1;
+        int fan = from == KlondikeState.WASTE ? wasteFan(source.size()) : 0;
+        int step = rowStep(source);
+        g2.drawRoundRect(source.getX() + fan, source.getY() + first * step,
+                layout.cardWidth, layout.cardHeight + (rows - 1) * step, layout.arc, layout.arc);
+        Pile target = piles[Move.to(hintMove)];
+        int last = target.getType() == Pile.Type.TABLEAU ? Math.max(0, target.size() - 1) : 0;
+        g2.drawRoundRect(target.getX(), target.getY() + last * rowStep(target),
+                layout.cardWidth, layout.cardHeight, layout.arc, layout.arc);
+    }
+
+    // ==== Auto-finish ====
+
+    public void setAutoFinish(boolean enabled) {
+        autoFinish = enabled;
+    }
 
-        int n = move.cardCount;
-        List<Card> temp = new ArrayList<>();
+    // once the game can play itself out, commits every remaining move as one undo entry and
+    // starts flying the cards; returns false when there is nothing to finish
+    private boolean startAutoFinish() {
+        if (!autoFinish || autoView != null) return false;
+        int n = state.finishingMoves(autoMoves);
+        if (n == 0) return false;
+
+        autoView = state.copy();
+        autoCount = n;
+        autoLanded = 0;
+        autoFlying = 0;
         for (int i = 0; i < n; i++) {
-            Card c = move.from.removeTop();
-            temp.add(0, c);
+            int move = autoMoves[i];
+            int from = Move.from(move);
+            Pile source = piles[from];
+            Pile target = piles[Move.to(move)];
+            int y = source.getY()
+                    + (KlondikeState.isTableau(from) ? (state.length(from) - 1) * rowStep(source) : 0);
+            int x = source.getX() + (from == KlondikeState.WASTE ? wasteFan(state.length(from)) : 0);
+            animator.start(new Slide(Card.of(state.top(from)), x, y, target.getX(), target.getY(),
+                    i * AUTO_STAGGER_MS, this::autoCardLanded));
+            int applied = state.apply(move) | (i > 0 ? Move.LINKED : 0);
+            moveManager.pushMove(applied, state);
+            if (journal != null) journal.recordMove(applied);
+            position = position.apply(applied);
+            keepPosition();
         }
-        move.to.addCards(temp);
+        positionChanged();
+        return true;
+    }
 
-        if (move.from == stockPile && move.to == wastePile && n == 1) {
-            Card c = move.to.peekTop();
-            if (c != null) c.setFaceUp(true);
-        } else if (move.from == wastePile && move.to == stockPile) {
-            for (Card c : temp) c.setFaceUp(false);
+    private void autoCardLanded() {
+        autoView.apply(autoMoves[autoLanded++]);
+        syncPiles();
+        if (autoLanded == autoCount) {
+            stopAutoFinish();
+            checkWinCondition();
         }
+    }
 
-        if (move.flippedCard != null) move.flippedCard.setFaceUp(true);
-
+    // ends the playback, showing the committed position
+    private void stopAutoFinish() {
+        if (autoView == null) return;
+        autoView = null;
+        animator.cancelAll();
+        autoFlying = 0;
+        autoCount = autoLanded = 0;
+        syncPiles();
         repaint();
     }
 
+    private boolean isFlying(Card c) {
+        return (autoFlying & (1L << c.getId())) != 0;
+    }
+
     private void checkWinCondition() {
-        int total = 0;
-        for (Pile f : foundationPiles) total += f.size();
-        if (total == 52) {
+        if (state.isWon()) {
             JOptionPane.showMessageDialog(this,
                     "✨ Selamat! Kamu menyelesaikan Whimsical Magic Solitaire! ✨",
                     "You Win",
@@ -542,8 +1156,6 @@ public class GamePanel extends JPanel implements MouseListener, MouseMotionListe
 - Class Card
 import java.awt.*;
 import java.awt.image.*;
-import java.io.*;
-import javax.imageio.ImageIO;
 
 
 public class Card {
@@ -560,50 +1172,55 @@ public class Card {
         Rank(int v, String l) { value = v; label = l; }
     }
 
-    private Suit suit;
-    private Rank rank;
-    private boolean faceUp = false;
+    // the 52 cards are shared by every game, state and thread; whether one is face up belongs
+    // to a position (KlondikeState's face-up mask), not to the card
+    private final Suit suit;
+    private final Rank rank;
+    private final int id;
 
-    private static BufferedImage BACK_IMAGE = null;
-    private static java.util.Map<String, BufferedImage> faceArt = new java.util.HashMap<>();
+    private static final Card[] CARDS = new Card[KlondikeState.CARD_COUNT];
 
     static {
-        loadImages();
+        for (Suit s : Suit.values()) {
+            for (Rank r : Rank.values()) {
+                Card c = new Card(s, r);
+                CARDS[c.id] = c;
+            }
+        }
     }
 
-    private static void loadImages() {
-        try {
-            BACK_IMAGE = ImageIO.read(new File("images/back.png"));
-        } catch (Exception ex) {
-            BACK_IMAGE = null;
-        }
+    // card art arrives from CardAtlas on the EDT once decoded; until then cards use vector art
+    private static BufferedImage BACK_IMAGE = null;
+    private static java.util.Map<String, BufferedImage> faceArt = new java.util.HashMap<>();
 
-        String[] ranks = {"J","Q","K"};
-        String[] suits = {"CLUBS","DIAMONDS","HEARTS","SPADES"};
-        for (String r : ranks) {
-            for (String s : suits) {
-                String name = r + "_" + s + ".png";
-                try {
-                    BufferedImage im = ImageIO.read(new File("images/" + name));
-                    if (im != null) faceArt.put(r + "_" + s, im);
-                } catch (Exception ex) {
-                }
-            }
-        }
+    // installs decoded art keyed "back" and "<J|Q|K>_<SUIT>"; EDT only
+    static void setArt(java.util.Map<String, BufferedImage> art) {
+        BACK_IMAGE = art.get("back");
+        faceArt = art;
     }
 
-    public Card(Suit s, Rank r) {
+    private Card(Suit s, Rank r) {
         this.suit = s;
         this.rank = r;
+        this.id = s.ordinal() * 13 + r.ordinal();
+    }
+
+    public static Card of(int id) {
+        return CARDS[id];
+    }
+
+    public static Card of(Suit s, Rank r) {
+        return CARDS[s.ordinal() * 13 + r.ordinal()];
     }
 
     public Suit getSuit(){ return suit; }
     public Rank getRank(){ return rank; }
-    public boolean isFaceUp(){ return faceUp; }
-    public void setFaceUp(boolean f){ faceUp = f; }
 
     public boolean isRed(){ return suit == Suit.HEARTS || suit == Suit.DIAMONDS; }
 
+    // 0..51, the card id used by KlondikeState
+    public int getId(){ return id; }
+
     private String getSuitSymbol() {
         switch (suit) {
             case CLUBS: return "♣";
@@ -615,7 +1232,21 @@ public class Card {
     }
 
 
-    public void draw(Graphics2D g2, int x, int y, int width, int height, boolean highlighted) {
+    // blits the cached sprite for this card; see CardSprites
+    public void draw(Graphics2D g2, int x, int y, int width, int height, boolean faceUp, boolean highlighted) {
+        BufferedImage sprite = CardSprites.get(this, faceUp, highlighted, width, height);
+        int sw = CardSprites.spriteWidth(width);
+        int sh = CardSprites.spriteHeight(height);
+        if (sprite.getWidth() == sw && sprite.getHeight() == sh) {
+            g2.drawImage(sprite, x - CardSprites.PAD, y - CardSprites.PAD, null);
+        } else {
+            // a device-resolution sprite lands pixel for pixel under the screen's scale transform
+            g2.drawImage(sprite, x - CardSprites.PAD, y - CardSprites.PAD, sw, sh, null);
+        }
+    }
+
+    // paints the card with vector graphics; used to build the sprites
+    void render(Graphics2D g2, int x, int y, int width, int height, boolean faceUp, boolean highlighted) {
         if (!faceUp) {
             drawBack(g2, x, y, width, height, highlighted);
             return;
@@ -623,44 +1254,63 @@ public class Card {
         drawFront(g2, x, y, width, height, highlighted);
     }
 
+    private static final Color BACK_FILL = new Color(70, 20, 110);
+    private static final Color BACK_ART_BORDER = new Color(255, 255, 255, 150);
+    private static final Color PLAIN_BACK_FILL = new Color(80, 0, 120);
+    private static final Color PLAIN_BACK_BORDER = new Color(180, 120, 255);
+    private static final Color PLAIN_BACK_STAR = new Color(255, 255, 255, 200);
+    private static final Font PLAIN_BACK_FONT = new Font("Serif", Font.BOLD, 22);
+    private static final Color FRONT_FILL = new Color(255, 255, 245);
+    private static final Color HIGHLIGHT_BORDER = new Color(255, 240, 130);
+    private static final Color FRONT_BORDER = new Color(200, 180, 255);
+    private static final Color RED_INK = new Color(180, 0, 40);
+    private static final Color BLACK_INK = new Color(20, 20, 80);
+    private static final BasicStroke BORDER = new BasicStroke(3f);
+    private static final BasicStroke HIGHLIGHT_STROKE = new BasicStroke(4f);
+
+    // a length given for the 80 pixel wide card the art was designed at, scaled to this width
+    private static int u(int width, int base) {
+        return Math.round(base * width / 80f);
+    }
+
     private void drawBack(Graphics2D g2, int x, int y, int width, int height, boolean highlighted) {
         if (BACK_IMAGE != null) {
-            g2.setColor(new Color(70, 20, 110));
-            g2.fillRoundRect(x, y, width, height, 18, 18);
+            g2.setColor(BACK_FILL);
+            g2.fillRoundRect(x, y, width, height, u(width, 18), u(width, 18));
 
             int pad = Math.max(6, width/12);
             int iw = width - pad*2;
             int ih = height - pad*2;
             g2.drawImage(BACK_IMAGE, x+pad, y+pad, iw, ih, null);
 
-            g2.setStroke(new BasicStroke(3f));
-            g2.setColor(new Color(255,255,255,150));
-            g2.drawRoundRect(x+3, y+3, width-6, height-6, 16, 16);
+            g2.setStroke(BORDER);
+            g2.setColor(BACK_ART_BORDER);
+            g2.drawRoundRect(x+3, y+3, width-6, height-6, u(width, 16), u(width, 16));
             return;
         }
 
-        g2.setColor(new Color(80, 0, 120));
-        g2.fillRoundRect(x, y, width, height, 18, 18);
-        g2.setColor(new Color(180, 120, 255));
-        g2.setStroke(new BasicStroke(3f));
-        g2.drawRoundRect(x + 3, y + 3, width - 6, height - 6, 18, 18);
-        g2.setFont(new Font("Serif", Font.BOLD, 22));
-        g2.setColor(new Color(255,255,255,200));
-        g2.drawString("★", x + width / 2 - 8, y + height / 2 + 6);
+        g2.setColor(PLAIN_BACK_FILL);
+        g2.fillRoundRect(x, y, width, height, u(width, 18), u(width, 18));
+        g2.setColor(PLAIN_BACK_BORDER);
+        g2.setStroke(BORDER);
+        g2.drawRoundRect(x + 3, y + 3, width - 6, height - 6, u(width, 18), u(width, 18));
+        g2.setFont(PLAIN_BACK_FONT.deriveFont((float) u(width, 22)));
+        g2.setColor(PLAIN_BACK_STAR);
+        g2.drawString("★", x + width / 2 - u(width, 8), y + height / 2 + u(width, 6));
     }
 
     private void drawFront(Graphics2D g2, int x, int y, int width, int height, boolean highlighted) {
-        g2.setColor(new Color(255, 255, 245));
-        g2.fillRoundRect(x, y, width, height, 18, 18);
+        g2.setColor(FRONT_FILL);
+        g2.fillRoundRect(x, y, width, height, u(width, 18), u(width, 18));
 
         if (highlighted) {
-            g2.setColor(new Color(255, 240, 130));
-            g2.setStroke(new BasicStroke(4f));
+            g2.setColor(HIGHLIGHT_BORDER);
+            g2.setStroke(HIGHLIGHT_STROKE);
         } else {
-            g2.setColor(new Color(200, 180, 255));
-            g2.setStroke(new BasicStroke(3f));
+            g2.setColor(FRONT_BORDER);
+            g2.setStroke(BORDER);
         }
-        g2.drawRoundRect(x, y, width, height, 18, 18);
+        g2.drawRoundRect(x, y, width, height, u(width, 18), u(width, 18));
 
         if ((rank == Rank.JACK || rank == Rank.QUEEN || rank == Rank.KING)) {
             String key = rank.label + "_" + suit.name();
@@ -675,20 +1325,20 @@ public class Card {
             }
         }
 
-        g2.setFont(new Font("Serif", Font.BOLD, Math.max(14, width/7)));
-        g2.setColor(isRed() ? new Color(180, 0, 40) : new Color(20, 20, 80));
+        g2.setFont(new Font("Serif", Font.BOLD, u(width, 14)));
+        g2.setColor(isRed() ? RED_INK : BLACK_INK);
         String topLabel = rank.label;
         String suitSym = getSuitSymbol();
-        g2.drawString(topLabel, x + 10, y + 22);
-        g2.setFont(new Font("Serif", Font.PLAIN, Math.max(12, width/9)));
-        g2.drawString(suitSym, x + 10, y + 40);
+        g2.drawString(topLabel, x + u(width, 10), y + u(width, 22));
+        g2.setFont(new Font("Serif", Font.PLAIN, u(width, 12)));
+        g2.drawString(suitSym, x + u(width, 10), y + u(width, 40));
 
-        g2.setFont(new Font("Serif", Font.PLAIN, Math.max(12, width/9)));
-        g2.drawString(topLabel, x + width - 28, y + height - 10);
-        g2.drawString(suitSym, x + width - 28, y + height - 28);
+        g2.setFont(new Font("Serif", Font.PLAIN, u(width, 12)));
+        g2.drawString(topLabel, x + width - u(width, 28), y + height - u(width, 10));
+        g2.drawString(suitSym, x + width - u(width, 28), y + height - u(width, 28));
 
-        g2.setFont(new Font("Serif", Font.BOLD, Math.max(28, width/3)));
-        g2.drawString(suitSym, x + width/2 - 10, y + height/2 + 10);
+        g2.setFont(new Font("Serif", Font.BOLD, u(width, 28)));
+        g2.drawString(suitSym, x + width/2 - u(width, 10), y + height/2 + u(width, 10));
     }
 
     public static BufferedImage getBackImage() { return BACK_IMAGE; }
@@ -705,19 +1355,33 @@ import java.util.*;
 
 public class Deck {
     private java.util.List<Card> cards;
+    private long dealNumber = -1;
 
+    // unshuffled; call shuffle() or shuffle(dealNumber) before dealing
     public Deck() {
         cards = new ArrayList<Card>();
         for (Card.Suit suit : Card.Suit.values()) {
             for (Card.Rank rank : Card.Rank.values()) {
-                cards.add(new Card(suit, rank));
+                cards.add(Card.of(suit, rank));
             }
         }
-        shuffle();
     }
 
     public void shuffle() {
-        Collections.shuffle(cards);
+        shuffle(Deals.randomDealNumber());
+    }
+
+    // arranges the cards so draw() returns them in the order of Deals.order(dealNumber)
+    public void shuffle(long dealNumber) {
+        byte[] order = new byte[KlondikeState.CARD_COUNT];
+        Deals.order(dealNumber, order);
+        cards.clear();
+        for (int i = order.length - 1; i >= 0; i--) cards.add(Card.of(order[i]));
+        this.dealNumber = dealNumber;
+    }
+
+    public long getDealNumber() {
+        return dealNumber;
     }
 
     public boolean isEmpty() {
@@ -733,62 +1397,136 @@ public class Deck {
 
 - Class Move
 public class Move {
-    public Pile from;
-    public Pile to;
-    public int cardCount;
-    public Card flippedCard;
+    // packed form used by KlondikeState and MoveManager:
+    // bits 0-3 source pile, 4-7 target pile, 8-13 card count, 14 a tableau card was turned over,
+    // 15 undone and redone together with the move before it
+    public static final int FLIP = 1 << 14;
+    public static final int LINKED = 1 << 15;
+
+    // search-only macro from KlondikeState.generateSearchMoves: bit 16 marks a waste play made
+    // after turning the stock until the waste holds bits 17-21 cards; bits 22-26 keep the waste
+    // length before it, for unapply
+    public static final int CYCLE = 1 << 16;
+
+    private Move() {
+    }
 
-    public Move(Pile from, Pile to, int cardCount, Card flippedCard) {
-        this.from = from;
-        this.to = to;
-        this.cardCount = cardCount;
-        this.flippedCard = flippedCard;
+    public static int of(int from, int to, int count) {
+        return from | (to << 4) | (count << 8);
     }
-}
 
+    public static int from(int move) { return move & 0xF; }
+    public static int to(int move) { return (move >> 4) & 0xF; }
+    public static int count(int move) { return (move >> 8) & 0x3F; }
+    public static boolean flipped(int move) { return (move & FLIP) != 0; }
+    public static boolean linked(int move) { return (move & LINKED) != 0; }
 
-- Class MoveManager
+    public static int cycle(int move, int wasteLength, int previousWasteLength) {
+        return move | CYCLE | (wasteLength << 17) | (previousWasteLength << 22);
+    }
+
+    public static boolean cycled(int move) { return (move & CYCLE) != 0; }
+    public static int wasteLength(int move) { return (move >> 17) & 0x1F; }
+    public static int previousWasteLength(int move) { return (move >> 22) & 0x1F; }
+}
+
+
+- Class MoveManager
 import java.util.*;
 
+// Undo/redo history of packed moves in a fixed ring, with a state snapshot every
+// snapshotInterval moves. Positions are absolute move numbers: [first, last] is retained and
+// index is the number of moves applied. When the ring is full the oldest block of
+// snapshotInterval moves is dropped, so the first retained index always has a snapshot.
 public class MoveManager {
-    private Deque<Move> undoStack;
-    private Deque<Move> redoStack;
+    public static final int NONE = -1;
+
+    private final int capacity;
+    private final int snapshotInterval;
+    private final int snapshotSlots;
+    private final int[] log;
+    private final byte[] snapshots;
+
+    private int first;
+    private int index;
+    private int last;
 
     public MoveManager() {
-        undoStack = new ArrayDeque<Move>();
-        redoStack = new ArrayDeque<Move>();
+        this(4096, 64);
     }
 
-    public void pushMove(Move move) {
-        undoStack.push(move);
-        redoStack.clear();
+    // maxMoves is rounded up to a multiple of snapshotInterval;
+    // memory is about 4 bytes per move plus one KlondikeState.SNAPSHOT_BYTES per interval
+    public MoveManager(int maxMoves, int snapshotInterval) {
+        this.snapshotInterval = snapshotInterval;
+        this.capacity = (maxMoves + snapshotInterval - 1) / snapshotInterval * snapshotInterval;
+        this.snapshotSlots = capacity / snapshotInterval + 1;
+        this.log = new int[capacity];
+        this.snapshots = new byte[snapshotSlots * KlondikeState.SNAPSHOT_BYTES];
     }
 
-    public Move popUndo() {
-        if (undoStack.isEmpty()) return null;
-        Move move = undoStack.pop();
-        redoStack.push(move);
-        return move;
+    // the move must already be applied to state
+    public void pushMove(int move, KlondikeState state) {
+        last = index;
+        if (last - first == capacity) first += snapshotInterval;
+        log[last % capacity] = move;
+        index = ++last;
+        if (index % snapshotInterval == 0) saveSnapshot(index, state);
     }
 
-    public Move popRedo() {
-        if (redoStack.isEmpty()) return null;
-        Move move = redoStack.pop();
-        undoStack.push(move);
-        return move;
+    public int popUndo() {
+        if (index == first) return NONE;
+        return log[--index % capacity];
+    }
+
+    public int popRedo() {
+        if (index == last) return NONE;
+        return log[index++ % capacity];
+    }
+
+    public int peekRedo() {
+        if (index == last) return NONE;
+        return log[index % capacity];
+    }
+
+    // restores the nearest snapshot at or before target and replays the moves after it
+    public void jumpTo(int target, KlondikeState state) {
+        if (target < first || target > last) throw new IllegalArgumentException("move " + target + " not retained");
+        int base = target / snapshotInterval * snapshotInterval;
+        state.readFrom(snapshots, slotOffset(base));
+        for (int i = base; i < target; i++) state.apply(log[i % capacity]);
+        index = target;
     }
 
     public boolean hasUndo() {
-        return !undoStack.isEmpty();
+        return index > first;
     }
 
     public boolean hasRedo() {
-        return !redoStack.isEmpty();
+        return index < last;
     }
 
-    public void clear() {
-        undoStack.clear();
-        redoStack.clear();
+    public int getIndex() { return index; }
+    public int getCapacity() { return capacity; }
+    public int getFirstIndex() { return first; }
+    public int getLastIndex() { return last; }
+
+    public int memoryBytes() {
+        return log.length * 4 + snapshots.length;
+    }
+
+    // starts a new history at the given position
+    public void clear(KlondikeState state) {
+        first = index = last = 0;
+        saveSnapshot(0, state);
+    }
+
+    private void saveSnapshot(int at, KlondikeState state) {
+        state.writeTo(snapshots, slotOffset(at));
+    }
+
+    private int slotOffset(int at) {
+        return (at / snapshotInterval % snapshotSlots) * KlondikeState.SNAPSHOT_BYTES;
     }
 }
 
@@ -797,64 +1535,95 @@ public class MoveManager {
 import java.util.*;
 import java.awt.*;
 
+// The cards shown in one pile. Cards live in a fixed array with a length, so moving a run
+// between piles is one System.arraycopy, and callers read through list views over that array
+// instead of copies.
 public class Pile {
 
     public enum Type {
         TABLEAU, FOUNDATION, STOCK, WASTE
     }
 
-    private java.util.List<Card> cards;
+    private final Card[] cards = new Card[KlondikeState.CARD_COUNT];
+    private int size;
+    private final java.util.List<Card> all = new View(0, -1);
     private Type type;
+    private int index;
     private int x;
     private int y;
 
-    public Pile(Type type, int x, int y) {
+    public Pile(Type type, int index, int x, int y) {
         this.type = type;
+        this.index = index;
         this.x = x;
         this.y = y;
-        this.cards = new ArrayList<Card>();
     }
 
     public Type getType() {
         return type;
     }
 
+    // pile number in KlondikeState
+    public int getIndex() {
+        return index;
+    }
+
+    // read-only view of the whole pile that follows later changes
     public java.util.List<Card> getCards() {
-        return cards;
+        return all;
+    }
+
+    // read-only view of cards [from, to) as they are now; valid until the pile changes
+    public java.util.List<Card> view(int from, int to) {
+        if (from < 0 || to > size || from > to) throw new IndexOutOfBoundsException(from + ".." + to + " of " + size);
+        return new View(from, to);
+    }
+
+    public Card get(int i) {
+        if (i < 0 || i >= size) throw new IndexOutOfBoundsException(i + " of " + size);
+        return cards[i];
     }
 
     public boolean isEmpty() {
-        return cards.isEmpty();
+        return size == 0;
     }
 
     public Card peekTop() {
-        if (cards.isEmpty()) return null;
-        return cards.get(cards.size() - 1);
+        return size == 0 ? null : cards[size - 1];
     }
 
     public Card removeTop() {
-        if (cards.isEmpty()) return null;
-        return cards.remove(cards.size() - 1);
+        if (size == 0) return null;
+        Card top = cards[--size];
+        cards[size] = null;
+        return top;
     }
 
     public void addCard(Card card) {
-        cards.add(card);
+        cards[size++] = card;
     }
 
     public void addCards(java.util.List<Card> newCards) {
-        cards.addAll(newCards);
+        for (int i = 0; i < newCards.size(); i++) cards[size++] = newCards.get(i);
     }
 
-    public java.util.List<Card> removeFromIndex(int index) {
-        java.util.List<Card> moving = new ArrayList<Card>();
-        while (cards.size() > index) {
-            moving.add(cards.remove(index));
-        }
-        return moving;
+    // moves the cards from index up onto target, keeping their order
+    public void moveTo(Pile target, int from) {
+        if (from < 0 || from > size) throw new IndexOutOfBoundsException(from + " of " + size);
+        int n = size - from;
+        System.arraycopy(cards, from, target.cards, target.size, n);
+        target.size += n;
+        Arrays.fill(cards, from, size, null);
+        size = from;
     }
 
     public int size() {
-        return cards.size();
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(cards, 0, size, null);
+        size = 0;
     }
 
     public int getX() {
@@ -869,15 +1638,43 @@ public class Pile {
         this.x = x;
         this.y = y;
     }
+
+    // cards [from, to) of the array; to < 0 means up to the current size
+    private class View extends AbstractList<Card> implements RandomAccess {
+        private final int from;
+        private final int to;
+
+        View(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public Card get(int i) {
+            if (i < 0 || i >= size()) throw new IndexOutOfBoundsException(i + " of " + size());
+            return cards[from + i];
+        }
+
+        @Override
+        public int size() {
+            return (to < 0 ? Pile.this.size : to) - from;
+        }
+    }
 }
 
 - Class SolitaireGame
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
 
 public class SolitaireGame {
 
     public static void main(String[] args) {
+        // decoding overlaps building the window; the panel repaints once the art is in
+        CompletableFuture<Void> art = CardAtlas.loadAsync(Paths.get("images"));
         SwingUtilities.invokeLater(new Runnable() {
             public void run() {
                 JFrame frame = new JFrame("Whimsical Magic Solitaire");
@@ -888,16 +1685,61 @@ public class SolitaireGame {
 
                 JPanel controlPanel = new JPanel();
                 JButton newGameButton = new JButton("New Game");
+                JButton dealButton = new JButton("Deal #");
                 JButton undoButton = new JButton("Undo");
                 JButton redoButton = new JButton("Redo");
+                JButton hintButton = new JButton("Hint");
+                JComboBox<String> drawBox = new JComboBox<>(new String[] {"Draw 1", "Draw 3"});
+                JComboBox<String> dealBox = new JComboBox<>(new String[] {"Any deal", "Easy", "Hard", "Winnable"});
+                JCheckBox autoFinishBox = new JCheckBox("Auto-finish", true);
+                autoFinishBox.setOpaque(false);
 
                 controlPanel.add(newGameButton);
+                controlPanel.add(dealButton);
                 controlPanel.add(undoButton);
                 controlPanel.add(redoButton);
+                controlPanel.add(hintButton);
+                controlPanel.add(drawBox);
+                controlPanel.add(dealBox);
+                controlPanel.add(autoFinishBox);
 
                 newGameButton.addActionListener(e -> gamePanel.newGame());
+                dealButton.addActionListener(e -> {
+                    String input = JOptionPane.showInputDialog(frame, "Deal number:", gamePanel.getDealNumber());
+                    if (input == null) return;
+                    try {
+                        gamePanel.newGame(Long.parseLong(input.trim()));
+                    } catch (NumberFormatException ex) {
+                        Toolkit.getDefaultToolkit().beep();
+                    }
+                });
                 undoButton.addActionListener(e -> gamePanel.undoMove());
                 redoButton.addActionListener(e -> gamePanel.redoMove());
+                hintButton.addActionListener(e -> gamePanel.showHint());
+                drawBox.addActionListener(e -> {
+                    gamePanel.setDrawCount(drawBox.getSelectedIndex() == 0 ? 1 : 3);
+                    dealBox.setEnabled(gamePanel.hasDealIndex());
+                });
+                dealBox.addActionListener(e -> gamePanel.setDealKind(DealIndex.Kind.values()[dealBox.getSelectedIndex()]));
+                autoFinishBox.addActionListener(e -> gamePanel.setAutoFinish(autoFinishBox.isSelected()));
+
+                art.thenRun(gamePanel::repaint);
+                gamePanel.getMetrics().register();
+                Path home = Paths.get(System.getProperty("user.home"), ".whimsical-solitaire");
+                gamePanel.enableDealIndex(home);
+                gamePanel.enableJournal(home);
+                // a resumed game keeps its own draw mode; the listener sees an unchanged count and
+                // does not redeal
+                drawBox.setSelectedIndex(gamePanel.getDrawCount() == 3 ? 1 : 0);
+                dealBox.setEnabled(gamePanel.hasDealIndex());
+                frame.addWindowListener(new WindowAdapter() {
+                    @Override
+                    public void windowClosing(WindowEvent e) {
+                        // the writer thread is a daemon, so let it finish before the JVM exits
+                        gamePanel.closeJournal();
+                        GameJournal.awaitWrites();
+                    }
+                });
 
                 frame.add(gamePanel, BorderLayout.CENTER);
                 frame.add(controlPanel, BorderLayout.SOUTH);
@@ -909,3 +1751,3914 @@ public class SolitaireGame {
         });
     }
 }
+
+
+- Class KlondikeState
+import java.util.Arrays;
+
+public class KlondikeState implements KlondikePosition {
+
+    public static final int STOCK = 0;
+    public static final int WASTE = 1;
+    public static final int FOUNDATION = 2;
+    public static final int TABLEAU = 6;
+    public static final int PILE_COUNT = 13;
+
+    public static final int CARD_COUNT = 52;
+    public static final int MAX_MOVES = 256;
+
+    // fixed slots per pile: stock/waste hold at most the 24 undealt cards,
+    // tableau column i holds at most i face-down cards plus a 13 card run
+    private static final int[] CAPACITY = {24, 24, 13, 13, 13, 13, 13, 14, 15, 16, 17, 18, 19};
+    private static final int[] OFFSET = new int[PILE_COUNT];
+    private static final int SLOTS;
+
+    // Zobrist keys. A tableau card is keyed by the card it rests on (52 = column bottom), so the
+    // hash is the same whichever column holds a stack and moving a run only rekeys its bottom card.
+    // Stock cards contribute nothing; the order of stock and waste follows from the deal.
+    private static final int BOTTOM = CARD_COUNT;
+    private static final long[] ON_CARD = new long[CARD_COUNT * (CARD_COUNT + 1)];
+    private static final long[] IN_FOUNDATION = new long[CARD_COUNT];
+    private static final long[] IN_WASTE = new long[CARD_COUNT];
+    private static final long[] FACE_DOWN = new long[CARD_COUNT];
+
+    static {
+        int o = 0;
+        for (int p = 0; p < PILE_COUNT; p++) {
+            OFFSET[p] = o;
+            o += CAPACITY[p];
+        }
+        SLOTS = o;
+
+        long seed = 0x5DEECE66DL;
+        for (int i = 0; i < ON_CARD.length; i++) ON_CARD[i] = mix(seed += 0x9E3779B97F4A7C15L);
+        for (int c = 0; c < CARD_COUNT; c++) {
+            IN_FOUNDATION[c] = mix(seed += 0x9E3779B97F4A7C15L);
+            IN_WASTE[c] = mix(seed += 0x9E3779B97F4A7C15L);
+            FACE_DOWN[c] = mix(seed += 0x9E3779B97F4A7C15L);
+        }
+    }
+
+    private final byte[] cards = new byte[SLOTS];
+    private final int[] length = new int[PILE_COUNT];
+    private long faceUp;
+    // cards turned per stock click: 1 or 3. A rule of the game, so it is not part of snapshots.
+    private int drawCount = 1;
+
+    private long hash;
+    // IN_WASTE keys of the cards currently in the waste and in the stock, so recycling is O(1)
+    private long wasteKeys;
+    private long stockKeys;
+
+    public KlondikeState() {
+    }
+
+    public KlondikeState(KlondikeState other) {
+        copyFrom(other);
+    }
+
+    // ==== Card ids ====
+
+    public static int cardId(int suit, int rank) { return suit * 13 + rank - 1; }
+    public static int suit(int card) { return card / 13; }
+    public static int rank(int card) { return card % 13 + 1; }
+
+    public static boolean isRed(int card) {
+        int s = card / 13;
+        return s == 1 || s == 2;
+    }
+
+    // ==== Setup ====
+
+    // cards in the order GamePanel draws them from the deck: tableau column by column, then the stock
+    public void deal(byte[] order) {
+        Arrays.fill(length, 0);
+        faceUp = 0L;
+        int next = 0;
+        for (int col = 0; col < 7; col++) {
+            int pile = TABLEAU + col;
+            for (int row = 0; row <= col; row++) push(pile, order[next++]);
+            faceUp |= 1L << top(pile);
+        }
+        while (next < CARD_COUNT) push(STOCK, order[next++]);
+        rehash();
+    }
+
+    public void deal(long dealNumber) {
+        byte[] order = new byte[CARD_COUNT];
+        Deals.order(dealNumber, order);
+        deal(order);
+    }
+
+    public int getDrawCount() {
+        return drawCount;
+    }
+
+    public void setDrawCount(int drawCount) {
+        if (drawCount != 1 && drawCount != 3) throw new IllegalArgumentException("draw " + drawCount);
+        this.drawCount = drawCount;
+    }
+
+    public void copyFrom(KlondikeState other) {
+        drawCount = other.drawCount;
+        System.arraycopy(other.cards, 0, cards, 0, SLOTS);
+        System.arraycopy(other.length, 0, length, 0, PILE_COUNT);
+        faceUp = other.faceUp;
+        hash = other.hash;
+        wasteKeys = other.wasteKeys;
+        stockKeys = other.stockKeys;
+    }
+
+    public KlondikeState copy() {
+        return new KlondikeState(this);
+    }
+
+    public void copyFrom(GameState other) {
+        drawCount = other.getDrawCount();
+        for (int p = 0; p < PILE_COUNT; p++) {
+            int n = other.length(p);
+            for (int i = 0; i < n; i++) cards[OFFSET[p] + i] = (byte) other.cardAt(p, i);
+            length[p] = n;
+        }
+        faceUp = other.faceUpMask();
+        rehash();
+    }
+
+    // flat form for snapshots: card slots, pile lengths, then the face-up mask
+    public static final int SNAPSHOT_BYTES = SLOTS + PILE_COUNT + 8;
+
+    public void writeTo(byte[] dst, int off) {
+        System.arraycopy(cards, 0, dst, off, SLOTS);
+        off += SLOTS;
+        for (int p = 0; p < PILE_COUNT; p++) dst[off++] = (byte) length[p];
+        for (int i = 0; i < 8; i++) dst[off++] = (byte) (faceUp >>> (i * 8));
+    }
+
+    public void readFrom(byte[] src, int off) {
+        System.arraycopy(src, off, cards, 0, SLOTS);
+        off += SLOTS;
+        for (int p = 0; p < PILE_COUNT; p++) length[p] = src[off++];
+        long mask = 0;
+        for (int i = 0; i < 8; i++) mask |= (src[off++] & 0xFFL) << (i * 8);
+        faceUp = mask;
+        rehash();
+    }
+
+    // ==== Queries ====
+
+    public int length(int pile) { return length[pile]; }
+    public int cardAt(int pile, int index) { return cards[OFFSET[pile] + index]; }
+    public boolean isFaceUp(int card) { return (faceUp & (1L << card)) != 0; }
+    public long faceUpMask() { return faceUp; }
+
+    public int top(int pile) {
+        int n = length[pile];
+        return n == 0 ? -1 : cards[OFFSET[pile] + n - 1];
+    }
+
+    public int foundationCount() {
+        return length[FOUNDATION] + length[FOUNDATION + 1] + length[FOUNDATION + 2] + length[FOUNDATION + 3];
+    }
+
+    public boolean isWon() {
+        return foundationCount() == CARD_COUNT;
+    }
+
+    // 64-bit Zobrist key of the position, maintained incrementally by apply/unapply
+    public long hash() {
+        return hash;
+    }
+
+    // recomputes the key from scratch; apply/unapply keep it equal to this
+    public long computeHash() {
+        long h = 0;
+        int waste = OFFSET[WASTE];
+        for (int i = 0; i < length[WASTE]; i++) h ^= IN_WASTE[cards[waste + i]];
+        for (int f = FOUNDATION; f < TABLEAU; f++) {
+            for (int i = 0; i < length[f]; i++) h ^= IN_FOUNDATION[cardAt(f, i)];
+        }
+        for (int t = TABLEAU; t < PILE_COUNT; t++) {
+            int below = -1;
+            for (int i = 0; i < length[t]; i++) {
+                int c = cardAt(t, i);
+                h ^= placement(c, t, below);
+                if (!isFaceUp(c)) h ^= FACE_DOWN[c];
+                below = c;
+            }
+        }
+        return h;
+    }
+
+    public static boolean isFoundation(int pile) { return pile >= FOUNDATION && pile < TABLEAU; }
+    public static boolean isTableau(int pile) { return pile >= TABLEAU; }
+
+    // ==== Rules ====
+
+    public static boolean canPlaceOnFoundation(int card, int top) {
+        if (top < 0) return rank(card) == 1;
+        return suit(card) == suit(top) && rank(card) == rank(top) + 1;
+    }
+
+    public static boolean canPlaceOnTableau(int card, int top) {
+        if (top < 0) return rank(card) == 13;
+        return isRed(card) != isRed(top) && rank(card) == rank(top) - 1;
+    }
+
+    public boolean isLegal(int move) {
+        return isLegal(this, move);
+    }
+
+    static boolean isLegal(KlondikePosition p, int move) {
+        int from = Move.from(move);
+        int to = Move.to(move);
+        int count = Move.count(move);
+        if (from == to || from >= PILE_COUNT || to >= PILE_COUNT) return false;
+        int length = p.length(from);
+        if (count <= 0 || count > length) return false;
+
+        if (from == STOCK) return to == WASTE && count == Math.min(p.getDrawCount(), length);
+        if (to == STOCK) return from == WASTE && p.length(STOCK) == 0 && count == length;
+        if (to == WASTE) return false;
+
+        int card = p.cardAt(from, length - count);
+        if (!p.isFaceUp(card)) return false;
+        if (isFoundation(to)) return count == 1 && canPlaceOnFoundation(card, p.top(to));
+        if (!isTableau(from) && count != 1) return false;
+        return canPlaceOnTableau(card, p.top(to));
+    }
+
+    // Once every tableau card is face up the game can usually play itself out. Writes the moves
+    // that finish it and returns their count, or 0 when it cannot be finished this way or the
+    // moves do not fit in out. Each step plays the lowest top card that fits a foundation; when
+    // none does it draws from the stock, recycling the waste when the stock is empty, and gives
+    // up after a whole pass through the stock turns up nothing to play.
+    public int finishingMoves(int[] out) {
+        if (isWon()) return 0;
+        for (int t = TABLEAU; t < PILE_COUNT; t++) {
+            if (firstFaceUp(t) > 0) return 0;
+        }
+        KlondikeState s = copy();
+        int n = 0;
+        int recycles = 0;
+        while (!s.isWon()) {
+            int move = -1;
+            int bestRank = 14;
+            for (int from = WASTE; from < PILE_COUNT; from++) {
+                if (isFoundation(from) || s.length[from] == 0) continue;
+                int card = s.top(from);
+                if (rank(card) >= bestRank) continue;
+                for (int to = FOUNDATION; to < TABLEAU; to++) {
+                    if (canPlaceOnFoundation(card, s.top(to))) {
+                        move = Move.of(from, to, 1);
+                        bestRank = rank(card);
+                        break;
+                    }
+                }
+            }
+            if (move >= 0) {
+                recycles = 0;
+            } else if (s.length[STOCK] > 0) {
+                move = Move.of(STOCK, WASTE, Math.min(drawCount, s.length[STOCK]));
+            } else if (s.length[WASTE] > 0 && recycles++ == 0) {
+                move = Move.of(WASTE, STOCK, s.length[WASTE]);
+            } else {
+                return 0;
+            }
+            if (n == out.length) return 0;
+            s.apply(move);
+            out[n++] = move;
+        }
+        return n;
+    }
+
+    // ==== Moves ====
+
+    // applies a legal move and returns it with Move.FLIP set when a tableau card was turned over
+    public int apply(int move) {
+        move &= ~Move.FLIP;
+        int from = Move.from(move);
+        int to = Move.to(move);
+        int count = Move.count(move);
+        if (Move.cycled(move)) setWasteLength(Move.wasteLength(move));
+
+        if (from == STOCK) {
+            draw(count);
+        } else if (to == STOCK) {
+            recycle();
+        } else {
+            transfer(from, to, count);
+            if (isTableau(from) && length[from] > 0) {
+                int t = top(from);
+                if (!isFaceUp(t)) {
+                    faceUp |= 1L << t;
+                    hash ^= FACE_DOWN[t];
+                    move |= Move.FLIP;
+                }
+            }
+        }
+        return move;
+    }
+
+    // reverses a move previously returned by apply
+    public void unapply(int move) {
+        int from = Move.from(move);
+        int to = Move.to(move);
+        int count = Move.count(move);
+
+        if (from == STOCK) {
+            undraw(count);
+        } else if (to == STOCK) {
+            unrecycle();
+        } else {
+            if (Move.flipped(move)) {
+                int t = top(from);
+                faceUp &= ~(1L << t);
+                hash ^= FACE_DOWN[t];
+            }
+            transfer(to, from, count);
+        }
+        if (Move.cycled(move)) setWasteLength(Move.previousWasteLength(move));
+    }
+
+    public int generateMoves(int[] out) {
+        return generateMoves(out, 0);
+    }
+
+    // writes the legal moves to out starting at offset and returns the number written. Moves are
+    // ordered for search: foundation moves, whole face-up runs, waste plays, then the rest.
+    // A foundation move no other card could depend on is returned on its own.
+    public int generateMoves(int[] out, int offset) {
+        int n = offset;
+        int wasteTop = top(WASTE);
+
+        // to foundations
+        if (wasteTop >= 0) {
+            int f = foundationFor(wasteTop);
+            if (f >= 0) {
+                if (isSafeForFoundation(wasteTop)) return single(out, offset, Move.of(WASTE, f, 1));
+                out[n++] = Move.of(WASTE, f, 1);
+            }
+        }
+        for (int t = TABLEAU; t < PILE_COUNT; t++) {
+            int c = top(t);
+            if (c < 0) continue;
+            int f = foundationFor(c);
+            if (f >= 0) {
+                if (isSafeForFoundation(c)) return single(out, offset, Move.of(t, f, 1));
+                out[n++] = Move.of(t, f, 1);
+            }
+        }
+
+        int firstEmpty = firstEmptyTableau();
+        n = tableauMoves(out, n, true, firstEmpty);
+
+        if (wasteTop >= 0) {
+            for (int d = TABLEAU; d < PILE_COUNT; d++) {
+                int dt = top(d);
+                if (dt < 0 && d != firstEmpty) continue;
+                if (canPlaceOnTableau(wasteTop, dt)) out[n++] = Move.of(WASTE, d, 1);
+            }
+        }
+        if (length[STOCK] > 0) out[n++] = Move.of(STOCK, WASTE, Math.min(drawCount, length[STOCK]));
+
+        n = tableauMoves(out, n, false, firstEmpty);
+
+        for (int f = FOUNDATION; f < TABLEAU; f++) {
+            int c = top(f);
+            if (c < 0) continue;
+            for (int d = TABLEAU; d < PILE_COUNT; d++) {
+                int dt = top(d);
+                if (dt < 0 && d != firstEmpty) continue;
+                if (canPlaceOnTableau(c, dt)) out[n++] = Move.of(f, d, 1);
+            }
+        }
+        if (length[STOCK] == 0 && length[WASTE] > 0) out[n++] = Move.of(WASTE, STOCK, length[WASTE]);
+        return n - offset;
+    }
+
+    // Moves for search with the stock cycle compressed. Stock and waste always hold one fixed
+    // sequence of cards that draws and recycles only split at a different point, so instead of
+    // expanding every stock click as a node, each card the cycle can bring to the top of the
+    // waste is offered directly as a Move.CYCLE play. Plain draws and recycles are left out.
+    // A safe foundation play from the cycle is only forced in draw-one, where every split can
+    // still be reached afterwards; in draw-three it shifts the reachable splits, so it is one
+    // choice among the others.
+    public int generateSearchMoves(int[] out, int offset) {
+        int n = generateMoves(out, offset);
+        if (n == 1 && isFoundation(Move.to(out[offset])) && isSafeForFoundation(top(Move.from(out[offset])))) {
+            return 1;
+        }
+        int end = offset;
+        for (int i = offset; i < offset + n; i++) {
+            int m = out[i];
+            if (Move.from(m) != STOCK && Move.to(m) != STOCK) out[end++] = m;
+        }
+
+        int w = length[WASTE];
+        int stock = length[STOCK];
+        int total = w + stock;
+        long reach = 0;
+        for (int l = w + drawCount; l < total; l += drawCount) reach |= 1L << l;
+        for (int l = drawCount; l < total; l += drawCount) reach |= 1L << l;
+        if (total > 0) reach |= 1L << total;
+        reach &= ~(1L | 1L << w);
+
+        int firstEmpty = firstEmptyTableau();
+        for (; reach != 0; reach &= reach - 1) {
+            int l = Long.numberOfTrailingZeros(reach);
+            int c = l <= w ? cardAt(WASTE, l - 1) : cardAt(STOCK, stock - 1 - (l - 1 - w));
+            int f = foundationFor(c);
+            if (f >= 0) {
+                int m = Move.cycle(Move.of(WASTE, f, 1), l, w);
+                if (drawCount == 1 && isSafeForFoundation(c)) return single(out, offset, m);
+                out[end++] = m;
+            }
+            for (int d = TABLEAU; d < PILE_COUNT; d++) {
+                int dt = top(d);
+                if (dt < 0 && d != firstEmpty) continue;
+                if (canPlaceOnTableau(c, dt)) out[end++] = Move.cycle(Move.of(WASTE, d, 1), l, w);
+            }
+        }
+        return end - offset;
+    }
+
+    // runs starting at the first face-up card when whole is set, otherwise the runs above it
+    private int tableauMoves(int[] out, int n, boolean whole, int firstEmpty) {
+        for (int t = TABLEAU; t < PILE_COUNT; t++) {
+            int len = length[t];
+            int first = firstFaceUp(t);
+            int start = whole ? first : first + 1;
+            int end = whole ? Math.min(first + 1, len) : len;
+            for (int i = start; i < end; i++) {
+                int c = cardAt(t, i);
+                for (int d = TABLEAU; d < PILE_COUNT; d++) {
+                    if (d == t) continue;
+                    int dt = top(d);
+                    if (dt < 0) {
+                        // a king already at the bottom gains nothing from moving, and empty columns are interchangeable
+                        if (i == 0 || d != firstEmpty || rank(c) != 13) continue;
+                    } else if (!canPlaceOnTableau(c, dt)) {
+                        continue;
+                    }
+                    out[n++] = Move.of(t, d, len - i);
+                }
+            }
+        }
+        return n;
+    }
+
+    private static int single(int[] out, int offset, int move) {
+        out[offset] = move;
+        return 1;
+    }
+
+    // true when every card that could be built on this one is already on a foundation
+    private boolean isSafeForFoundation(int card) {
+        int r = rank(card);
+        if (r <= 2) return true;
+        boolean red = isRed(card);
+        int a = red ? 0 : 1;
+        int b = red ? 3 : 2;
+        return foundationRank(a) >= r - 1 && foundationRank(b) >= r - 1;
+    }
+
+    private int foundationRank(int suit) {
+        for (int f = FOUNDATION; f < TABLEAU; f++) {
+            int c = top(f);
+            if (c >= 0 && suit(c) == suit) return rank(c);
+        }
+        return 0;
+    }
+
+    // ==== Internals ====
+
+    private void rehash() {
+        wasteKeys = 0;
+        stockKeys = 0;
+        for (int i = 0; i < length[WASTE]; i++) wasteKeys ^= IN_WASTE[cardAt(WASTE, i)];
+        for (int i = 0; i < length[STOCK]; i++) stockKeys ^= IN_WASTE[cardAt(STOCK, i)];
+        hash = computeHash();
+    }
+
+    // Zobrist key of a card in a pile resting on below (-1 for none); shared with GameState
+    static long placement(int card, int pile, int below) {
+        if (pile >= TABLEAU) return ON_CARD[card * (CARD_COUNT + 1) + (below < 0 ? BOTTOM : below)];
+        if (pile >= FOUNDATION) return IN_FOUNDATION[card];
+        if (pile == WASTE) return IN_WASTE[card];
+        return 0;
+    }
+
+    static long faceDownKey(int card) {
+        return FACE_DOWN[card];
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private int foundationFor(int card) {
+        if (rank(card) == 1) {
+            for (int f = FOUNDATION; f < TABLEAU; f++) {
+                if (length[f] == 0) return f;
+            }
+            return -1;
+        }
+        for (int f = FOUNDATION; f < TABLEAU; f++) {
+            if (top(f) == card - 1) return f;
+        }
+        return -1;
+    }
+
+    private int firstEmptyTableau() {
+        for (int t = TABLEAU; t < PILE_COUNT; t++) {
+            if (length[t] == 0) return t;
+        }
+        return -1;
+    }
+
+    public int firstFaceUp(int pile) {
+        int base = OFFSET[pile];
+        int len = length[pile];
+        for (int i = 0; i < len; i++) {
+            if ((faceUp & (1L << cards[base + i])) != 0) return i;
+        }
+        return len;
+    }
+
+    private void push(int pile, int card) {
+        cards[OFFSET[pile] + length[pile]++] = (byte) card;
+    }
+
+    private int pop(int pile) {
+        return cards[OFFSET[pile] + --length[pile]];
+    }
+
+    private void draw(int count) {
+        for (int i = 0; i < count; i++) {
+            int c = pop(STOCK);
+            faceUp |= 1L << c;
+            push(WASTE, c);
+            hash ^= IN_WASTE[c];
+            wasteKeys ^= IN_WASTE[c];
+            stockKeys ^= IN_WASTE[c];
+        }
+    }
+
+    private void undraw(int count) {
+        for (int i = 0; i < count; i++) {
+            int c = pop(WASTE);
+            faceUp &= ~(1L << c);
+            push(STOCK, c);
+            hash ^= IN_WASTE[c];
+            wasteKeys ^= IN_WASTE[c];
+            stockKeys ^= IN_WASTE[c];
+        }
+    }
+
+    // the whole waste goes back to the empty stock in one reversed copy
+    private void recycle() {
+        faceUp &= ~reverseInto(WASTE, STOCK);
+        hash ^= wasteKeys;
+        stockKeys = wasteKeys;
+        wasteKeys = 0;
+    }
+
+    private void unrecycle() {
+        faceUp |= reverseInto(STOCK, WASTE);
+        hash ^= stockKeys;
+        wasteKeys = stockKeys;
+        stockKeys = 0;
+    }
+
+    // moves every card of from onto the empty pile to in reverse order; returns their mask
+    private long reverseInto(int from, int to) {
+        int count = length[from];
+        int src = OFFSET[from] + count - 1;
+        int dst = OFFSET[to];
+        long mask = 0;
+        for (int i = 0; i < count; i++) {
+            byte c = cards[src - i];
+            cards[dst + i] = c;
+            mask |= 1L << c;
+        }
+        length[from] = 0;
+        length[to] = count;
+        return mask;
+    }
+
+    // splits the stock and waste sequence so the waste holds the given number of cards
+    private void setWasteLength(int wasteLength) {
+        int w = length[WASTE];
+        if (wasteLength > w) draw(wasteLength - w);
+        else if (wasteLength < w) undraw(w - wasteLength);
+    }
+
+    // moves the top count cards; only the bottom card of the run changes what it rests on
+    private void transfer(int from, int to, int count) {
+        int src = OFFSET[from] + length[from] - count;
+        int c = cards[src];
+        int below = length[from] > count ? cards[src - 1] : -1;
+        hash ^= placement(c, from, below) ^ placement(c, to, top(to));
+        if (from == WASTE) wasteKeys ^= IN_WASTE[c];
+        if (to == WASTE) wasteKeys ^= IN_WASTE[c];
+        System.arraycopy(cards, src, cards, OFFSET[to] + length[to], count);
+        length[from] -= count;
+        length[to] += count;
+    }
+}
+
+
+- Class KlondikePosition
+// Read access to a position, implemented by the mutable KlondikeState and the immutable
+// GameState so both check moves with the one KlondikeState.isLegal(KlondikePosition, int)
+public interface KlondikePosition {
+    int length(int pile);
+    int cardAt(int pile, int index);
+    int top(int pile);
+    boolean isFaceUp(int card);
+    int getDrawCount();
+}
+
+
+- Class TranspositionTable
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class TranspositionTable {
+
+    private static final int MAX_PROBES = 32;
+
+    private final AtomicLongArray keys;
+    private final int mask;
+    private volatile boolean overflowed;
+
+    public TranspositionTable(int bits) {
+        keys = new AtomicLongArray(1 << bits);
+        mask = (1 << bits) - 1;
+    }
+
+    // records the key; returns true if it was not in the table yet.
+    // A full probe window counts as already visited and marks the table as overflowed.
+    public boolean visit(long key) {
+        if (key == 0) key = 1;
+        int slot = (int) (key ^ (key >>> 32)) & mask;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            long k = keys.get(slot);
+            if (k == key) return false;
+            if (k == 0) {
+                if (keys.compareAndSet(slot, 0, key)) return true;
+                if (keys.get(slot) == key) return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        overflowed = true;
+        return false;
+    }
+
+    public boolean hasOverflowed() {
+        return overflowed;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
+
+
+- Class KlondikeSolver
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class KlondikeSolver {
+
+    public enum Outcome { SOLVED, UNSOLVABLE, UNKNOWN }
+
+    public static class Result {
+        public final Outcome outcome;
+        public final int[] moves;
+        public final long nodes;
+        public final long probes;
+        public final long hits;
+        public final long nanos;
+
+        Result(Outcome outcome, int[] moves, long nodes, long probes, long hits, long nanos) {
+            this.outcome = outcome;
+            this.moves = moves;
+            this.nodes = nodes;
+            this.probes = probes;
+            this.hits = hits;
+            this.nanos = nanos;
+        }
+
+        public double nodesPerSecond() {
+            return nanos == 0 ? 0 : nodes * 1e9 / nanos;
+        }
+
+        public double hitRate() {
+            return probes == 0 ? 0 : (double) hits / probes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s moves=%d nodes=%d (%.0f/s) tt-hit=%.1f%% time=%.1fms",
+                    outcome, moves == null ? 0 : moves.length, nodes, nodesPerSecond(),
+                    hitRate() * 100, nanos / 1e6);
+        }
+    }
+
+    // siblings are only handed to idle workers this close to a task's root
+    private static final int FORK_DEPTH = 24;
+    private static final int FLUSH_INTERVAL = 1024;
+
+    private final ForkJoinPool pool;
+    private final int tableBits;
+    private final long nodeLimit;
+
+    public KlondikeSolver() {
+        this(ForkJoinPool.commonPool(), 22, 20_000_000L);
+    }
+
+    public KlondikeSolver(ForkJoinPool pool, int tableBits, long nodeLimit) {
+        this.pool = pool;
+        this.tableBits = tableBits;
+        this.nodeLimit = nodeLimit;
+    }
+
+    public Result solve(KlondikeState start) {
+        long t0 = System.nanoTime();
+        Search search = new Search(new TranspositionTable(tableBits), nodeLimit);
+        KlondikeState root = start.copy();
+        if (root.isWon()) return new Result(Outcome.SOLVED, new int[0], 0, 0, 0, System.nanoTime() - t0);
+
+        search.table.visit(root.hash());
+        int[] moves = new int[KlondikeState.MAX_MOVES];
+        int n = root.generateSearchMoves(moves, 0);
+        pool.invoke(new SearchTask(null, search, root, new int[0], Arrays.copyOf(moves, n)));
+
+        long nanos = System.nanoTime() - t0;
+        int[] solution = search.solution.get();
+        if (solution != null) solution = expand(start, solution);
+        Outcome outcome;
+        if (solution != null) {
+            outcome = Outcome.SOLVED;
+        } else if (search.limitHit || search.table.hasOverflowed()) {
+            outcome = Outcome.UNKNOWN;
+        } else {
+            outcome = Outcome.UNSOLVABLE;
+        }
+        return new Result(outcome, solution, search.nodes.get(), search.probes.get(), search.hits.get(), nanos);
+    }
+
+    // state shared by every task of one solve
+    private static class Search {
+        final TranspositionTable table;
+        final long nodeLimit;
+        final AtomicReference<int[]> solution = new AtomicReference<>();
+        final AtomicLong nodes = new AtomicLong();
+        final AtomicLong probes = new AtomicLong();
+        final AtomicLong hits = new AtomicLong();
+        volatile boolean stop;
+        volatile boolean limitHit;
+
+        Search(TranspositionTable table, long nodeLimit) {
+            this.table = table;
+            this.nodeLimit = nodeLimit;
+        }
+    }
+
+    // depth-first search below a fixed prefix; the root frame is the given move list.
+    // Offloaded siblings complete through the pending count instead of being joined.
+    private static class SearchTask extends CountedCompleter<Void> {
+        private static final long serialVersionUID = 1L;
+
+        private final Search search;
+        private final KlondikeState state;
+        private final int[] prefix;
+        private final int[] rootMoves;
+
+        private int[] frameMoves = new int[64 * KlondikeState.MAX_MOVES];
+        private int[] frameCount = new int[64];
+        private int[] frameNext = new int[64];
+        private int[] applied = new int[64];
+        private long nodes, probes, hits;
+
+        SearchTask(SearchTask parent, Search search, KlondikeState state, int[] prefix, int[] rootMoves) {
+            super(parent);
+            this.search = search;
+            this.state = state;
+            this.prefix = prefix;
+            this.rootMoves = rootMoves;
+        }
+
+        @Override
+        public void compute() {
+            System.arraycopy(rootMoves, 0, frameMoves, 0, rootMoves.length);
+            frameCount[0] = rootMoves.length;
+            frameNext[0] = 0;
+            run();
+            flush();
+            tryComplete();
+        }
+
+        private void run() {
+            int d = 0;
+            while (true) {
+                if (frameNext[d] == frameCount[d]) {
+                    if (d == 0) return;
+                    d--;
+                    state.unapply(applied[d]);
+                    continue;
+                }
+                if (search.stop) return;
+
+                int move = frameMoves[d * KlondikeState.MAX_MOVES + frameNext[d]++];
+                if (d < FORK_DEPTH && frameNext[d] < frameCount[d] && getSurplusQueuedTaskCount() <= 0) {
+                    offload(d);
+                }
+
+                applied[d] = state.apply(move);
+                if (++nodes % FLUSH_INTERVAL == 0) flush();
+                if (state.isWon()) {
+                    found(d);
+                    return;
+                }
+                probes++;
+                if (!search.table.visit(state.hash())) {
+                    hits++;
+                    state.unapply(applied[d]);
+                    continue;
+                }
+
+                d++;
+                if (d == frameCount.length) grow();
+                frameCount[d] = state.generateSearchMoves(frameMoves, d * KlondikeState.MAX_MOVES);
+                frameNext[d] = 0;
+            }
+        }
+
+        // hands the untried siblings of frame d to a new task so idle workers can steal them
+        private void offload(int d) {
+            int from = d * KlondikeState.MAX_MOVES + frameNext[d];
+            int[] rest = Arrays.copyOfRange(frameMoves, from, d * KlondikeState.MAX_MOVES + frameCount[d]);
+            frameCount[d] = frameNext[d];
+            addToPendingCount(1);
+            new SearchTask(this, search, state.copy(), path(d), rest).fork();
+        }
+
+        private void grow() {
+            int size = frameCount.length * 2;
+            frameMoves = Arrays.copyOf(frameMoves, size * KlondikeState.MAX_MOVES);
+            frameCount = Arrays.copyOf(frameCount, size);
+            frameNext = Arrays.copyOf(frameNext, size);
+            applied = Arrays.copyOf(applied, size);
+        }
+
+        private int[] path(int depth) {
+            int[] p = Arrays.copyOf(prefix, prefix.length + depth);
+            System.arraycopy(applied, 0, p, prefix.length, depth);
+            return p;
+        }
+
+        private void found(int d) {
+            if (search.solution.compareAndSet(null, path(d + 1))) search.stop = true;
+        }
+
+        private void flush() {
+            long total = search.nodes.addAndGet(nodes);
+            search.probes.addAndGet(probes);
+            search.hits.addAndGet(hits);
+            nodes = probes = hits = 0;
+            if (total >= search.nodeLimit) {
+                search.limitHit = true;
+                search.stop = true;
+            }
+        }
+    }
+
+    // rewrites each Move.CYCLE play as the stock clicks a player would make before it
+    static int[] expand(KlondikeState start, int[] path) {
+        KlondikeState s = start.copy();
+        int[] out = new int[path.length * 4];
+        int n = 0;
+        for (int move : path) {
+            if (Move.cycled(move)) {
+                int target = Move.wasteLength(move);
+                for (int guard = 0; s.length(KlondikeState.WASTE) != target; guard++) {
+                    if (guard > 2 * KlondikeState.CARD_COUNT) throw new IllegalStateException("waste length " + target + " unreachable");
+                    int stock = s.length(KlondikeState.STOCK);
+                    int step = stock == 0
+                            ? Move.of(KlondikeState.WASTE, KlondikeState.STOCK, s.length(KlondikeState.WASTE))
+                            : Move.of(KlondikeState.STOCK, KlondikeState.WASTE, Math.min(s.getDrawCount(), stock));
+                    if (n == out.length) out = Arrays.copyOf(out, n * 2);
+                    out[n++] = s.apply(step);
+                }
+                move &= Move.CYCLE - 1;
+            }
+            if (n == out.length) out = Arrays.copyOf(out, n * 2);
+            out[n++] = s.apply(move & ~Move.LINKED);
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    // ==== Cross-check ====
+
+    // plain depth-first search over generateMoves, with every stock click as its own node;
+    // slow, but it makes none of the shortcuts of generateSearchMoves
+    static Outcome exhaustive(KlondikeState start, int tableBits, long nodeLimit) {
+        KlondikeState state = start.copy();
+        if (state.isWon()) return Outcome.SOLVED;
+        TranspositionTable table = new TranspositionTable(tableBits);
+        table.visit(state.hash());
+        int[] frameMoves = new int[64 * KlondikeState.MAX_MOVES];
+        int[] frameCount = new int[64];
+        int[] frameNext = new int[64];
+        int[] applied = new int[64];
+        frameCount[0] = state.generateMoves(frameMoves, 0);
+        long nodes = 0;
+        int d = 0;
+        while (true) {
+            if (frameNext[d] == frameCount[d]) {
+                if (d == 0) break;
+                d--;
+                state.unapply(applied[d]);
+                continue;
+            }
+            if (++nodes > nodeLimit) return Outcome.UNKNOWN;
+            applied[d] = state.apply(frameMoves[d * KlondikeState.MAX_MOVES + frameNext[d]++]);
+            if (state.isWon()) return Outcome.SOLVED;
+            if (!table.visit(state.hash())) {
+                state.unapply(applied[d]);
+                continue;
+            }
+            d++;
+            if (d == frameCount.length) {
+                int size = d * 2;
+                frameMoves = Arrays.copyOf(frameMoves, size * KlondikeState.MAX_MOVES);
+                frameCount = Arrays.copyOf(frameCount, size);
+                frameNext = Arrays.copyOf(frameNext, size);
+                applied = Arrays.copyOf(applied, size);
+            }
+            frameCount[d] = state.generateMoves(frameMoves, d * KlondikeState.MAX_MOVES);
+            frameNext[d] = 0;
+        }
+        return table.hasOverflowed() ? Outcome.UNKNOWN : Outcome.UNSOLVABLE;
+    }
+
+    // Solves deals 1..deals in both draw modes with the compressed search and again with
+    // exhaustive(), and reports every deal where one proves what the other rules out. Deal 5
+    // in draw-three is the case where forcing a cycle play used to lose the only winning line.
+    // Returns the number of disagreements.
+    static int crossCheck(int deals, long nodeLimit) {
+        KlondikeSolver solver = new KlondikeSolver(ForkJoinPool.commonPool(), 22, nodeLimit);
+        int compared = 0, mismatches = 0;
+        for (int draw : new int[] {1, 3}) {
+            for (long deal = 1; deal <= deals; deal++) {
+                KlondikeState state = new KlondikeState();
+                state.setDrawCount(draw);
+                state.deal(deal);
+                Outcome fast = solver.solve(state).outcome;
+                Outcome slow = exhaustive(state, 24, nodeLimit);
+                if (fast == Outcome.UNKNOWN || slow == Outcome.UNKNOWN) continue;
+                compared++;
+                if (fast != slow) {
+                    mismatches++;
+                    System.out.println("draw " + draw + " deal " + deal + ": compressed " + fast + ", exhaustive " + slow);
+                }
+            }
+        }
+        System.out.printf("cross-check: %d deals compared, %d mismatches%n", compared, mismatches);
+        return mismatches;
+    }
+
+    // usage: KlondikeSolver [deals] [nodeLimit] [firstDeal] [drawCount]
+    //        KlondikeSolver crosscheck [deals] [nodeLimit]
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("crosscheck")) {
+            int deals = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+            long limit = args.length > 2 ? Long.parseLong(args[2]) : 5_000_000L;
+            if (crossCheck(deals, limit) > 0) System.exit(1);
+            return;
+        }
+        int deals = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        long limit = args.length > 1 ? Long.parseLong(args[1]) : 20_000_000L;
+        long first = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        int draw = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        KlondikeSolver solver = new KlondikeSolver(ForkJoinPool.commonPool(), 22, limit);
+
+        int solved = 0, unsolvable = 0;
+        long nodes = 0, nanos = 0;
+        for (int i = 0; i < deals; i++) {
+            KlondikeState state = new KlondikeState();
+            state.setDrawCount(draw);
+            state.deal(first + i);
+
+            Result r = solver.solve(state);
+            System.out.println("deal " + (first + i) + ": " + r);
+            if (r.outcome == Outcome.SOLVED) solved++;
+            if (r.outcome == Outcome.UNSOLVABLE) unsolvable++;
+            nodes += r.nodes;
+            nanos += r.nanos;
+        }
+        System.out.printf("%d deals: %d solved, %d unsolvable, %d unknown, %.0f nodes/s%n",
+                deals, solved, unsolvable, deals - solved - unsolvable, nanos == 0 ? 0 : nodes * 1e9 / nanos);
+    }
+}
+
+
+- Class Deals
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.LongStream;
+
+public class Deals {
+
+    // bulk file: header, then one record per deal with the 52 card ids packed into 6 bits each
+    public static final int MAGIC = 0x574D5344; // "WMSD"
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 24;
+    public static final int RECORD_BYTES = 39;
+
+    private static final int CHUNK = 16384;
+
+    private static final ThreadLocal<ByteBuffer> CHUNK_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(CHUNK * RECORD_BYTES));
+    private static final ThreadLocal<byte[]> ORDER = ThreadLocal.withInitial(() -> new byte[KlondikeState.CARD_COUNT]);
+
+    private Deals() {
+    }
+
+    public static long randomDealNumber() {
+        return ThreadLocalRandom.current().nextLong() >>> 16;
+    }
+
+    // card ids of a deal in the order they are dealt: a Fisher-Yates shuffle driven by SplitMix64
+    // seeded with the deal number, so every deal number maps to one layout on every JVM
+    public static void order(long dealNumber, byte[] out) {
+        for (int i = 0; i < KlondikeState.CARD_COUNT; i++) out[i] = (byte) i;
+        long seed = dealNumber;
+        for (int i = KlondikeState.CARD_COUNT - 1; i > 0; i--) {
+            seed += 0x9E3779B97F4A7C15L;
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            z ^= z >>> 31;
+            int j = (int) (((z >>> 32) * (i + 1)) >>> 32);
+            byte t = out[i];
+            out[i] = out[j];
+            out[j] = t;
+        }
+    }
+
+    public static void pack(byte[] order, ByteBuffer dst) {
+        long bits = 0;
+        int held = 0;
+        for (int i = 0; i < KlondikeState.CARD_COUNT; i++) {
+            bits = (bits << 6) | order[i];
+            held += 6;
+            while (held >= 8) {
+                held -= 8;
+                dst.put((byte) (bits >>> held));
+            }
+        }
+    }
+
+    // reads the record at an absolute buffer position
+    public static void unpack(ByteBuffer src, int position, byte[] out) {
+        long bits = 0;
+        int held = 0;
+        int p = position;
+        for (int i = 0; i < KlondikeState.CARD_COUNT; i++) {
+            while (held < 6) {
+                bits = (bits << 8) | (src.get(p++) & 0xFF);
+                held += 8;
+            }
+            held -= 6;
+            out[i] = (byte) ((bits >>> held) & 0x3F);
+        }
+    }
+
+    public static long recordPosition(long index) {
+        return HEADER_BYTES + index * RECORD_BYTES;
+    }
+
+    // writes count deals starting at firstDeal, generating chunks on all cores
+    public static void writeFile(Path file, long firstDeal, long count) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putLong(firstDeal).putLong(count).flip();
+            writeFully(ch, header, 0);
+
+            long chunks = (count + CHUNK - 1) / CHUNK;
+            LongStream.range(0, chunks).parallel().forEach(chunk -> {
+                long start = chunk * CHUNK;
+                int n = (int) Math.min(CHUNK, count - start);
+                ByteBuffer buf = CHUNK_BUFFER.get();
+                byte[] order = ORDER.get();
+                buf.clear();
+                for (int i = 0; i < n; i++) {
+                    order(firstDeal + start + i, order);
+                    pack(order, buf);
+                }
+                buf.flip();
+                try {
+                    writeFully(ch, buf, recordPosition(start));
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        }
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) position += ch.write(buf, position);
+    }
+
+    // usage: Deals <count> [firstDeal] [file]
+    public static void main(String[] args) throws IOException {
+        long count = args.length > 0 ? Long.parseLong(args[0]) : 1_000_000L;
+        long first = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        Path file = Paths.get(args.length > 2 ? args[2] : "deals.bin");
+
+        long t0 = System.nanoTime();
+        writeFile(file, first, count);
+        double secs = (System.nanoTime() - t0) / 1e9;
+        System.out.printf("%d deals -> %s (%d bytes) in %.2fs, %.0f deals/s%n",
+                count, file, Files.size(file), secs, count / secs);
+    }
+}
+
+
+- Class SolitaireBench
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.List;
+
+// Micro-benchmarks for the hot paths. Each benchmark is calibrated to roughly ITERATION_MS per
+// iteration, warmed up, then measured; results can be saved as a baseline and compared later.
+// usage: SolitaireBench [--filter text] [--save file] [--compare file]
+public class SolitaireBench {
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int ITERATIONS = 10;
+    private static final long ITERATION_MS = 200;
+
+    // consumed results so the JIT cannot drop the measured work
+    private static volatile long sink;
+
+    interface Op {
+        long run(int ops);
+    }
+
+    private static class Score {
+        final double nsPerOp;
+        final double error;
+
+        Score(double nsPerOp, double error) {
+            this.nsPerOp = nsPerOp;
+            this.error = error;
+        }
+    }
+
+    private final Map<String, Op> benchmarks = new LinkedHashMap<>();
+
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty("java.awt.headless") == null) System.setProperty("java.awt.headless", "true");
+
+        String filter = null;
+        Path save = null;
+        Path compare = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--filter")) filter = args[++i];
+            else if (args[i].equals("--save")) save = Paths.get(args[++i]);
+            else if (args[i].equals("--compare")) compare = Paths.get(args[++i]);
+        }
+
+        SolitaireBench bench = new SolitaireBench();
+        bench.register();
+
+        Properties baseline = new Properties();
+        if (compare != null) {
+            try (Reader r = Files.newBufferedReader(compare)) {
+                baseline.load(r);
+            }
+        }
+
+        Properties results = new Properties();
+        System.out.printf("%-28s %14s %12s %14s%n", "benchmark", "ns/op", "error", "vs baseline");
+        for (Map.Entry<String, Op> e : bench.benchmarks.entrySet()) {
+            String name = e.getKey();
+            if (filter != null && !name.contains(filter)) continue;
+            Score score = measure(e.getValue());
+            results.setProperty(name, Double.toString(score.nsPerOp));
+
+            String delta = "";
+            String base = baseline.getProperty(name);
+            if (base != null) {
+                double b = Double.parseDouble(base);
+                delta = String.format("%+.1f%%", (score.nsPerOp - b) * 100 / b);
+            }
+            System.out.printf("%-28s %14.2f %12.2f %14s%n", name, score.nsPerOp, score.error, delta);
+        }
+
+        if (save != null) {
+            try (Writer w = Files.newBufferedWriter(save)) {
+                results.store(w, "SolitaireBench ns/op");
+            }
+        }
+    }
+
+    private static Score measure(Op op) {
+        int ops = 1;
+        long budget = ITERATION_MS * 1_000_000L;
+        while (true) {
+            long t0 = System.nanoTime();
+            sink += op.run(ops);
+            long elapsed = System.nanoTime() - t0;
+            if (elapsed > budget / 4) {
+                ops = (int) Math.max(1, Math.min(Integer.MAX_VALUE, (long) ops * budget / elapsed));
+                break;
+            }
+            ops *= 2;
+        }
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) sink += op.run(ops);
+
+        double[] samples = new double[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            long t0 = System.nanoTime();
+            sink += op.run(ops);
+            samples[i] = (double) (System.nanoTime() - t0) / ops;
+        }
+        double mean = 0;
+        for (double v : samples) mean += v;
+        mean /= samples.length;
+        double var = 0;
+        for (double v : samples) var += (v - mean) * (v - mean);
+        return new Score(mean, Math.sqrt(var / (samples.length - 1)));
+    }
+
+    // ==== Benchmarks ====
+
+    private void register() {
+        benchmarks.put("deck.construct", ops -> {
+            long h = 0;
+            for (int i = 0; i < ops; i++) h += new Deck().isEmpty() ? 0 : 1;
+            return h;
+        });
+
+        benchmarks.put("deck.constructAndShuffle", ops -> {
+            long h = 0;
+            for (int i = 0; i < ops; i++) {
+                Deck d = new Deck();
+                d.shuffle(i);
+                h += d.draw().getId();
+            }
+            return h;
+        });
+
+        KlondikeState late = lateGamePosition();
+        int[] moves = new int[KlondikeState.MAX_MOVES];
+        int[] candidates = allPileMoves(late);
+
+        benchmarks.put("rules.isLegal", ops -> {
+            long h = 0;
+            for (int i = 0; i < ops; i++) {
+                if (late.isLegal(candidates[i % candidates.length])) h++;
+            }
+            return h;
+        });
+
+        benchmarks.put("rules.generateMoves", ops -> {
+            long h = 0;
+            for (int i = 0; i < ops; i++) h += late.generateMoves(moves);
+            return h;
+        });
+
+        KlondikeState play = late.copy();
+        benchmarks.put("rules.applyUnapply", ops -> {
+            int n = play.generateMoves(moves);
+            long h = 0;
+            for (int i = 0; i < ops; i++) {
+                int m = play.apply(moves[i % n]);
+                h ^= play.hash();
+                play.unapply(m);
+            }
+            return h;
+        });
+
+        Pile pile = new Pile(Pile.Type.TABLEAU, KlondikeState.TABLEAU, 0, 0);
+        Deck deck = new Deck();
+        for (int i = 0; i < 13; i++) pile.addCard(deck.draw());
+        Pile lifted = new Pile(Pile.Type.TABLEAU, KlondikeState.TABLEAU + 1, 0, 0);
+        benchmarks.put("pile.moveToAndBack", ops -> {
+            long h = 0;
+            for (int i = 0; i < ops; i++) {
+                pile.moveTo(lifted, i % 13);
+                h += lifted.size();
+                lifted.moveTo(pile, 0);
+            }
+            return h;
+        });
+
+        MoveManager manager = new MoveManager();
+        manager.clear(late);
+        benchmarks.put("moveManager.pushUndoRedo", ops -> {
+            long h = 0;
+            for (int i = 0; i < ops; i++) {
+                manager.pushMove(Move.of(KlondikeState.TABLEAU, KlondikeState.TABLEAU + 1, 1 + (i & 7)), late);
+                manager.pushMove(Move.of(KlondikeState.TABLEAU + 1, KlondikeState.TABLEAU, 1), late);
+                h += manager.popUndo();
+                h += manager.popRedo();
+                manager.popUndo();
+                manager.popUndo();
+            }
+            return h;
+        });
+
+        // a long session: jump back and forth across a few thousand recorded moves
+        MoveManager history = new MoveManager();
+        KlondikeState replay = new KlondikeState();
+        replay.deal(1);
+        history.clear(replay);
+        for (int i = 0; i < 4000; i++) {
+            int n = replay.generateMoves(moves);
+            history.pushMove(replay.apply(moves[n - 1]), replay);
+        }
+        benchmarks.put("moveManager.jumpTo", ops -> {
+            long h = 0;
+            for (int i = 0; i < ops; i++) {
+                history.jumpTo((i * 769) % 4001, replay);
+                h ^= replay.hash();
+            }
+            return h;
+        });
+
+        GamePanel panel = new GamePanel();
+        panel.setPosition(late);
+        Dimension size = panel.getPreferredSize();
+        panel.setSize(size);
+        BufferedImage frame = new BufferedImage(size.width, size.height, BufferedImage.TYPE_INT_RGB);
+        benchmarks.put("panel.paintComponent", ops -> {
+            long h = 0;
+            for (int i = 0; i < ops; i++) {
+                Graphics2D g = frame.createGraphics();
+                panel.paintComponent(g);
+                g.dispose();
+                h += frame.getRGB(i % size.width, size.height / 2);
+            }
+            return h;
+        });
+
+        // a drag frame only repaints the stack's old and new bounds
+        benchmarks.put("panel.paintDragRegion", ops -> {
+            long h = 0;
+            for (int i = 0; i < ops; i++) {
+                Graphics2D g = frame.createGraphics();
+                g.setClip(300 + (i & 15), 200, 160, 240);
+                panel.paintComponent(g);
+                g.dispose();
+                h += frame.getRGB(310, 300);
+            }
+            return h;
+        });
+
+        GlitterParticles glitter = new GlitterParticles();
+        Rectangle damage = new Rectangle();
+        benchmarks.put("glitter.updateAndPaint", ops -> {
+            long h = 0;
+            Graphics2D g = frame.createGraphics();
+            for (int i = 0; i < ops; i++) {
+                glitter.emitFrom(300 + (i & 63), 300);
+                glitter.update(16f);
+                damage.setBounds(0, 0, 0, 0);
+                glitter.addBounds(damage);
+                glitter.paint(g);
+                h += damage.width;
+            }
+            g.dispose();
+            return h;
+        });
+    }
+
+    // a position about three quarters of the way through the first solvable deal
+    private static KlondikeState lateGamePosition() {
+        KlondikeSolver solver = new KlondikeSolver(java.util.concurrent.ForkJoinPool.commonPool(), 20, 200_000);
+        for (long deal = 1; ; deal++) {
+            KlondikeState state = new KlondikeState();
+            state.deal(deal);
+            KlondikeSolver.Result r = solver.solve(state);
+            if (r.outcome != KlondikeSolver.Outcome.SOLVED) continue;
+            for (int i = 0; i < r.moves.length * 3 / 4; i++) state.apply(r.moves[i]);
+            return state;
+        }
+    }
+
+    // every pile-to-pile move of one card or a tableau run, legal or not
+    private static int[] allPileMoves(KlondikeState state) {
+        int[] out = new int[KlondikeState.PILE_COUNT * KlondikeState.PILE_COUNT * 4];
+        int n = 0;
+        for (int from = 0; from < KlondikeState.PILE_COUNT; from++) {
+            for (int to = 0; to < KlondikeState.PILE_COUNT; to++) {
+                int len = state.length(from);
+                for (int count = 1; count <= Math.min(len, 4); count++) out[n++] = Move.of(from, to, count);
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+}
+
+
+- Class CardSprites
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+// Pre-rendered card images, built lazily on first use. Every sprite is PAD pixels larger on
+// each side so borders stroked on the card edge are not clipped. Sprites are rendered in device
+// pixels, one set per screen scale, so a window moving between a standard and a HiDPI screen
+// keeps both; a set is rebuilt only when the card size for its scale changes.
+// Only touched from the EDT.
+public class CardSprites {
+
+    public static final int PAD = 3;
+
+    private static final int MAX_SCALES = 4;
+
+    private static class SpriteSet {
+        final double scale;
+        final int width;
+        final int height;
+        final BufferedImage[] fronts = new BufferedImage[KlondikeState.CARD_COUNT * 2];
+        BufferedImage back;
+
+        SpriteSet(double scale, int width, int height) {
+            this.scale = scale;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private static final SpriteSet[] sets = new SpriteSet[MAX_SCALES];
+    private static SpriteSet current;
+    private static double scale = 1;
+    private static GraphicsConfiguration config;
+
+    // lookups served from the cache and lookups that had to render, for PaintMetrics
+    private static long hits;
+    private static long misses;
+
+    private CardSprites() {
+    }
+
+    public static long hits() { return hits; }
+    public static long misses() { return misses; }
+
+    // device pixels per layout pixel on the screen being painted
+    public static void setScale(double s) {
+        scale = s;
+    }
+
+    public static BufferedImage get(Card card, boolean faceUp, boolean highlighted, int w, int h) {
+        SpriteSet set = current;
+        if (set == null || set.width != w || set.height != h || set.scale != scale) set = select(w, h);
+        if (!faceUp) {
+            if (set.back == null) {
+                misses++;
+                set.back = render(set, card, false, false);
+            } else {
+                hits++;
+            }
+            return set.back;
+        }
+        int i = card.getId() * 2 + (highlighted ? 1 : 0);
+        BufferedImage sprite = set.fronts[i];
+        if (sprite == null) {
+            misses++;
+            sprite = render(set, card, true, highlighted);
+            set.fronts[i] = sprite;
+        } else {
+            hits++;
+        }
+        return sprite;
+    }
+
+    // the set for the current scale, replaced if the card size changed; a new scale takes a
+    // free slot or the least recently selected one
+    private static SpriteSet select(int w, int h) {
+        int slot = -1;
+        for (int i = 0; i < MAX_SCALES; i++) {
+            if (sets[i] != null && sets[i].scale == scale) {
+                slot = i;
+                break;
+            }
+        }
+        if (slot < 0) slot = MAX_SCALES - 1;
+        SpriteSet set = sets[slot];
+        if (set == null || set.scale != scale || set.width != w || set.height != h) set = new SpriteSet(scale, w, h);
+        System.arraycopy(sets, 0, sets, 1, slot);
+        sets[0] = set;
+        current = set;
+        return set;
+    }
+
+    // width and height of a sprite in layout pixels; the image itself may be larger
+    public static int spriteWidth(int w) {
+        return w + PAD * 2;
+    }
+
+    public static int spriteHeight(int h) {
+        return h + PAD * 2;
+    }
+
+    // drops every sprite, e.g. after the card art changed
+    public static void invalidate() {
+        java.util.Arrays.fill(sets, null);
+        current = null;
+    }
+
+    private static BufferedImage render(SpriteSet set, Card card, boolean faceUp, boolean highlighted) {
+        BufferedImage img = createImage((int) Math.ceil(spriteWidth(set.width) * set.scale),
+                (int) Math.ceil(spriteHeight(set.height) * set.scale));
+        Graphics2D g = img.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.scale(set.scale, set.scale);
+        card.render(g, PAD, PAD, set.width, set.height, faceUp, highlighted);
+        g.dispose();
+        return img;
+    }
+
+    private static BufferedImage createImage(int w, int h) {
+        if (GraphicsEnvironment.isHeadless()) return new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB_PRE);
+        if (config == null) {
+            config = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+        }
+        return config.createCompatibleImage(w, h, Transparency.TRANSLUCENT);
+    }
+}
+
+
+- Class GameJournal
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Append-only binary record of one game: a 16 byte header with the draw count and the deal
+// number, then one 2 byte record per event. Moves are stored without the flip bit, which
+// replay recomputes, and with bit 14 marking Move.LINKED; undo and redo are single records
+// and a history jump is a record plus a 4 byte index.
+// Records are batched on the EDT and written and fsynced on a background thread, so a crash
+// loses at most the last unsynced batch; a torn tail is ignored on load. A batch is handed to
+// the writer when it fills or, via a Swing timer, once it is a second old. Opening, closing,
+// archiving and discarding files are queued on the same thread, in order, so the EDT never
+// waits on the disk; awaitWrites() is for shutdown.
+public class GameJournal implements Closeable {
+
+    public static final String CURRENT = "current.wmsj";
+    public static final String ARCHIVE = "archive";
+
+    static final int MAGIC = 0x574D534A; // "WMSJ"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+
+    static final int EVENT = 0x8000;
+    static final int LINKED = 0x4000;
+    static final int UNDO = EVENT | 1;
+    static final int REDO = EVENT | 2;
+    static final int JUMP = EVENT | 3;
+
+    private static final int BATCH_BYTES = 128;
+    private static final long SYNC_INTERVAL_NANOS = 1_000_000_000L;
+
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "journal-writer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // opened, written and closed on the writer thread only; null if it could not be opened
+    private FileChannel channel;
+    private final ByteBuffer pending = ByteBuffer.allocate(BATCH_BYTES + 8);
+    private long lastSync = System.nanoTime();
+    // flushes a partial batch once the player stops; runs on the EDT like the record calls
+    private final javax.swing.Timer syncTimer;
+
+    private GameJournal() {
+        this.syncTimer = new javax.swing.Timer((int) (SYNC_INTERVAL_NANOS / 4_000_000), e -> {
+            if (pending.position() > 0 && System.nanoTime() - lastSync >= SYNC_INTERVAL_NANOS) submitPending();
+        });
+        syncTimer.start();
+    }
+
+    // starts a new journal, replacing any file at the path once the writer gets to it
+    public static GameJournal create(Path file, long dealNumber, int drawCount) {
+        GameJournal journal = new GameJournal();
+        WRITER.execute(() -> {
+            try {
+                Files.createDirectories(file.toAbsolutePath().getParent());
+                FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putInt(MAGIC).putShort((short) VERSION).putShort((short) drawCount).putLong(dealNumber).flip();
+                while (header.hasRemaining()) ch.write(header);
+                ch.force(true);
+                journal.channel = ch;
+            } catch (IOException ex) {
+                System.err.println("could not start journal: " + ex);
+            }
+        });
+        return journal;
+    }
+
+    // continues a journal after its last valid record, dropping a torn tail
+    public static GameJournal append(Path file, long validBytes) {
+        GameJournal journal = new GameJournal();
+        WRITER.execute(() -> {
+            try {
+                FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE);
+                ch.truncate(validBytes);
+                ch.position(validBytes);
+                journal.channel = ch;
+            } catch (IOException ex) {
+                System.err.println("could not resume journal: " + ex);
+            }
+        });
+        return journal;
+    }
+
+    // moves a finished journal into the archive directory, after any queued writes to it
+    public static void archive(Path file, long dealNumber) {
+        WRITER.execute(() -> {
+            try {
+                if (!Files.exists(file)) return;
+                Path dir = file.toAbsolutePath().getParent().resolve(ARCHIVE);
+                Files.createDirectories(dir);
+                Path target = dir.resolve(System.currentTimeMillis() + "-" + dealNumber + ".wmsj");
+                Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ex) {
+                System.err.println("could not archive journal: " + ex);
+            }
+        });
+    }
+
+    // deletes a journal, after any queued writes to it
+    public static void discard(Path file) {
+        WRITER.execute(() -> {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ex) {
+                System.err.println("could not discard journal: " + ex);
+            }
+        });
+    }
+
+    // blocks until everything queued so far has been written, synced and closed
+    public static void awaitWrites() {
+        try {
+            WRITER.submit(() -> { }).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    // ==== Writing (EDT) ====
+
+    public void recordMove(int move) {
+        put((move & 0x3FFF) | (Move.linked(move) ? LINKED : 0));
+    }
+
+    public void recordUndo() {
+        put(UNDO);
+    }
+
+    public void recordRedo() {
+        put(REDO);
+    }
+
+    public void recordJump(int index) {
+        pending.putShort((short) JUMP).putInt(index);
+        afterRecord();
+    }
+
+    private void put(int record) {
+        pending.putShort((short) record);
+        afterRecord();
+    }
+
+    private void afterRecord() {
+        if (pending.position() >= BATCH_BYTES || System.nanoTime() - lastSync >= SYNC_INTERVAL_NANOS) {
+            submitPending();
+        }
+    }
+
+    private void submitPending() {
+        lastSync = System.nanoTime();
+        ByteBuffer batch = ByteBuffer.wrap(Arrays.copyOf(pending.array(), pending.position()));
+        pending.clear();
+        WRITER.execute(() -> {
+            if (channel == null) return;
+            try {
+                while (batch.hasRemaining()) channel.write(batch);
+                channel.force(false);
+            } catch (IOException ex) {
+                System.err.println("journal write failed: " + ex);
+            }
+        });
+    }
+
+    // queues a last write and sync of everything recorded so far and the closing of the file
+    @Override
+    public void close() {
+        syncTimer.stop();
+        submitPending();
+        WRITER.execute(() -> {
+            if (channel == null) return;
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                System.err.println("could not close journal: " + ex);
+            }
+        });
+    }
+
+    // ==== Loading ====
+
+    public static class Replay {
+        public final long dealNumber;
+        public final KlondikeState state;
+        public final MoveManager history;
+        public final long validBytes;
+        public final int records;
+
+        Replay(long dealNumber, KlondikeState state, MoveManager history, long validBytes, int records) {
+            this.dealNumber = dealNumber;
+            this.state = state;
+            this.history = history;
+            this.validBytes = validBytes;
+            this.records = records;
+        }
+    }
+
+    // streams the file and rebuilds the final position and undo history without any rendering;
+    // reading stops at a torn or invalid record
+    public static Replay load(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+            while (buf.position() < HEADER_BYTES && ch.read(buf) > 0) { }
+            buf.flip();
+            if (buf.remaining() < HEADER_BYTES || buf.getInt() != MAGIC || buf.getShort() != VERSION) {
+                throw new IOException("not a game journal: " + file);
+            }
+            int drawCount = buf.getShort() == 3 ? 3 : 1; // 0 in journals written before draw-three
+            long dealNumber = buf.getLong();
+
+            KlondikeState state = new KlondikeState();
+            state.setDrawCount(drawCount);
+            state.deal(dealNumber);
+            MoveManager history = new MoveManager();
+            history.clear(state);
+
+            long valid = HEADER_BYTES;
+            int records = 0;
+            boolean eof = false;
+            while (true) {
+                if (buf.remaining() < 6 && !eof) {
+                    buf.compact();
+                    eof = ch.read(buf) < 0;
+                    buf.flip();
+                }
+                if (buf.remaining() < 2) break;
+                int record = buf.getShort(buf.position()) & 0xFFFF;
+                int size = record == JUMP ? 6 : 2;
+                if (buf.remaining() < size) break;
+                buf.position(buf.position() + 2);
+
+                if (record == UNDO) {
+                    int m = history.popUndo();
+                    if (m == MoveManager.NONE) break;
+                    state.unapply(m);
+                } else if (record == REDO) {
+                    int m = history.popRedo();
+                    if (m == MoveManager.NONE) break;
+                    state.apply(m);
+                } else if (record == JUMP) {
+                    int index = buf.getInt();
+                    if (index < history.getFirstIndex() || index > history.getLastIndex()) break;
+                    history.jumpTo(index, state);
+                } else if ((record & EVENT) == 0 && state.isLegal(record & 0x3FFF)) {
+                    int linked = (record & LINKED) != 0 ? Move.LINKED : 0;
+                    history.pushMove(state.apply(record & 0x3FFF) | linked, state);
+                } else {
+                    break;
+                }
+                valid += size;
+                records++;
+            }
+            return new Replay(dealNumber, state, history, valid, records);
+        }
+    }
+
+    // usage: GameJournal <journal files or directories>
+    // loads every journal in parallel and reports throughput
+    public static void main(String[] args) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (String arg : args) {
+            Path p = Paths.get(arg);
+            if (Files.isDirectory(p)) {
+                try (DirectoryStream<Path> ds = Files.newDirectoryStream(p, "*.wmsj")) {
+                    for (Path f : ds) files.add(f);
+                }
+            } else {
+                files.add(p);
+            }
+        }
+
+        AtomicLong bytes = new AtomicLong();
+        AtomicLong records = new AtomicLong();
+        AtomicInteger won = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        long t0 = System.nanoTime();
+        files.parallelStream().forEach(f -> {
+            try {
+                Replay r = load(f);
+                bytes.addAndGet(r.validBytes);
+                records.addAndGet(r.records);
+                if (r.state.isWon()) won.incrementAndGet();
+            } catch (IOException ex) {
+                failed.incrementAndGet();
+            }
+        });
+        double secs = (System.nanoTime() - t0) / 1e9;
+        System.out.printf("%d journals (%d won, %d unreadable), %d records, %d bytes in %.2fs: %.0f games/s%n",
+                files.size(), won.get(), failed.get(), records.get(), bytes.get(), secs, files.size() / secs);
+    }
+}
+
+
+- Class HintEngine
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Ranks the legal moves of a position with a bounded lookahead on a low-priority worker thread.
+// analyze() is called from the EDT after every change of position; it cancels the running
+// search and queues the new one. Rankings are cached by exact position, so the EDT only ever
+// does a map lookup; the Zobrist key alone would mix up positions that differ only in which
+// column or foundation holds a stack, and it does not cover the draw count.
+public class HintEngine {
+
+    public interface Listener {
+        // called on the worker thread; ranked[0] is the best move, empty when there is none
+        void hintReady(GameState position, int[] ranked);
+    }
+
+    private static final int MAX_DEPTH = 8;
+    private static final long NODE_LIMIT = 400_000;
+    private static final int CACHE_SIZE = 4096;
+    private static final int WON = 1_000_000;
+
+    private final Listener listener;
+    private final AtomicLong generation = new AtomicLong();
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "hint-search");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+    private final Map<GameState, int[]> cache = new LinkedHashMap<GameState, int[]>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<GameState, int[]> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    public HintEngine(Listener listener) {
+        this.listener = listener;
+    }
+
+    // ranking for the position, or null while it is still being searched
+    public synchronized int[] cached(GameState position) {
+        return cache.get(position);
+    }
+
+    private synchronized void store(GameState position, int[] ranked) {
+        cache.put(position, ranked);
+    }
+
+    // cancels the current search and starts one for the position unless it is cached. The
+    // position is immutable, so the caller hands it over without copying; the worker unpacks
+    // it into its own KlondikeState.
+    public void analyze(GameState position) {
+        long gen = generation.incrementAndGet();
+        if (cached(position) != null) return;
+        worker.execute(() -> {
+            if (generation.get() != gen) return;
+            int[] ranked = new Search(position.toState(), gen).run();
+            if (ranked == null) return; // cancelled
+            store(position, ranked);
+            listener.hintReady(position, ranked);
+        });
+    }
+
+    // cancels any running search without starting another
+    public void cancel() {
+        generation.incrementAndGet();
+    }
+
+    // Iterative deepening: each pass scores every root move by the best evaluation reachable
+    // within the depth; the ranking of the deepest pass finished within the node budget wins.
+    private class Search {
+        final KlondikeState state;
+        final long gen;
+        final int[] moves = new int[MAX_DEPTH * KlondikeState.MAX_MOVES];
+        final long[] path = new long[MAX_DEPTH + 1];
+        long nodes;
+        boolean stopped;
+
+        Search(KlondikeState state, long gen) {
+            this.state = state;
+            this.gen = gen;
+        }
+
+        int[] run() {
+            int n = state.generateMoves(moves, 0);
+            int[] rootMoves = Arrays.copyOf(moves, n);
+            int[] ranked = rootMoves.clone();
+            int[] score = new int[n];
+            path[0] = state.hash();
+
+            for (int depth = 1; depth <= MAX_DEPTH && n > 1; depth++) {
+                for (int i = 0; i < n; i++) {
+                    int applied = state.apply(rootMoves[i]);
+                    score[i] = search(1, depth - 1, applied);
+                    state.unapply(applied);
+                    if (stopped) break;
+                }
+                if (stopped) break;
+                ranked = rank(rootMoves, score);
+                if (score[indexOf(rootMoves, ranked[0])] >= WON) break;
+            }
+            if (generation.get() != gen) return null;
+            return ranked;
+        }
+
+        private int search(int ply, int depth, int last) {
+            if (state.isWon()) return WON - ply;
+            if (depth == 0 || stopped) return evaluate();
+            if ((++nodes & 1023) == 0 && (nodes >= NODE_LIMIT || generation.get() != gen)) {
+                stopped = true;
+                return evaluate();
+            }
+            long key = state.hash();
+            for (int i = 0; i < ply; i++) {
+                if (path[i] == key) return Integer.MIN_VALUE + 1; // repeated position
+            }
+            path[ply] = key;
+
+            int base = ply * KlondikeState.MAX_MOVES;
+            int n = state.generateMoves(moves, base);
+            int best = evaluate();
+            for (int i = 0; i < n; i++) {
+                int move = moves[base + i];
+                if (isReversal(move, last)) continue;
+                int applied = state.apply(move);
+                int s = search(ply + 1, depth - 1, applied);
+                state.unapply(applied);
+                if (s > best) best = s;
+            }
+            return best;
+        }
+
+        private int evaluate() {
+            return HintEngine.evaluate(state);
+        }
+    }
+
+    // foundation progress first, then cards turned over, then empty columns
+    static int evaluate(KlondikeState state) {
+        int faceDown = 0;
+        int empty = 0;
+        for (int t = KlondikeState.TABLEAU; t < KlondikeState.PILE_COUNT; t++) {
+            faceDown += state.firstFaceUp(t);
+            if (state.length(t) == 0) empty++;
+        }
+        return state.foundationCount() * 100 - faceDown * 40 + empty * 15;
+    }
+
+    // moving cards straight back between two tableau columns never helps
+    private static boolean isReversal(int move, int last) {
+        return !Move.flipped(last) && Move.from(move) == Move.to(last) && Move.to(move) == Move.from(last)
+                && KlondikeState.isTableau(Move.from(move)) && KlondikeState.isTableau(Move.to(move));
+    }
+
+    // moves by descending score; equal scores keep the generator's order
+    private static int[] rank(int[] moves, int[] score) {
+        Integer[] order = new Integer[moves.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Integer.compare(score[b], score[a]));
+        int[] ranked = new int[moves.length];
+        for (int i = 0; i < ranked.length; i++) ranked[i] = moves[order[i]];
+        return ranked;
+    }
+
+    private static int indexOf(int[] moves, int move) {
+        for (int i = 0; i < moves.length; i++) {
+            if (moves[i] == move) return i;
+        }
+        return -1;
+    }
+}
+
+
+- Class Animator
+import javax.swing.*;
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+
+// One frame clock for every running animation. Each frame advances all animations by the time
+// elapsed since they started, collects the areas they damaged and repaints their union once.
+// The timer only runs while something is animating, so an idle table costs nothing.
+public class Animator {
+
+    public abstract static class Animation {
+        private long start;
+
+        // advances to the given time since the animation started, adding the area to repaint to
+        // damage; returns false once the animation has finished
+        protected abstract boolean step(double elapsedMs, Rectangle damage);
+
+        protected void paint(Graphics2D g2) {
+        }
+
+        // called when the animation is removed before finishing
+        protected void cancelled() {
+        }
+    }
+
+    private static final int FRAME_MS = 16;
+
+    private final JComponent target;
+    private final Timer timer;
+    private final List<Animation> running = new ArrayList<>();
+    private final Rectangle damage = new Rectangle();
+
+    public Animator(JComponent target) {
+        this.target = target;
+        this.timer = new Timer(FRAME_MS, e -> tick());
+        timer.setCoalesce(true);
+    }
+
+    public void start(Animation animation) {
+        animation.start = System.nanoTime();
+        running.add(animation);
+        if (!timer.isRunning()) timer.start();
+    }
+
+    public boolean isAnimating() {
+        return !running.isEmpty();
+    }
+
+    // removes every animation without finishing it
+    public void cancelAll() {
+        if (running.isEmpty()) return;
+        List<Animation> dropped = new ArrayList<>(running);
+        running.clear();
+        timer.stop();
+        for (Animation a : dropped) a.cancelled();
+        target.repaint();
+    }
+
+    // paints the running animations in the order they were started
+    public void paint(Graphics2D g2) {
+        for (int i = 0; i < running.size(); i++) running.get(i).paint(g2);
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        damage.setBounds(0, 0, 0, 0);
+        for (int i = 0; i < running.size(); i++) {
+            Animation a = running.get(i);
+            boolean alive = a.step((now - a.start) / 1e6, damage);
+            // a step may cancel everything, e.g. when the last auto-finish card lands
+            if (!alive && i < running.size() && running.get(i) == a) running.remove(i--);
+        }
+        if (running.isEmpty()) timer.stop();
+        if (!damage.isEmpty()) target.repaint(damage);
+    }
+
+    // adds a card rectangle widened by margin to the damage
+    public static void addDamage(Rectangle damage, int x, int y, int w, int h, int margin) {
+        if (damage.isEmpty()) {
+            damage.setBounds(x - margin, y - margin, w + 2 * margin, h + 2 * margin);
+        } else {
+            damage.add(x - margin, y - margin);
+            damage.add(x + w + margin, y + h + margin);
+        }
+    }
+}
+
+
+- Class GlitterParticles
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+// Fixed pool of sparkle particles with their state in primitive arrays. Particles are emitted
+// around a moving point at a steady rate, drift and fade with the frame time, and are drawn
+// from a small set of cached sprites, so updating and painting allocate nothing.
+public class GlitterParticles {
+
+    private static final int CAPACITY = 96;
+    private static final float EMIT_PER_MS = 0.12f;
+    private static final float SPREAD = 60f;
+    private static final float MIN_LIFE_MS = 250f;
+    private static final float MAX_LIFE_MS = 550f;
+    private static final float MAX_STEP_MS = 50f;
+
+    // sprites by size (1-4px) and fade level
+    private static final int SIZES = 4;
+    private static final int LEVELS = 4;
+    private static final BufferedImage[] SPRITES = new BufferedImage[SIZES * LEVELS];
+
+    static {
+        for (int s = 0; s < SIZES; s++) {
+            for (int l = 0; l < LEVELS; l++) {
+                BufferedImage img = new BufferedImage(s + 1, s + 1, BufferedImage.TYPE_INT_ARGB_PRE);
+                Graphics2D g = img.createGraphics();
+                g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                g.setColor(new Color(255, 255, 255, 120 + 135 * (l + 1) / LEVELS));
+                g.fillOval(0, 0, s + 1, s + 1);
+                g.dispose();
+                SPRITES[s * LEVELS + l] = img;
+            }
+        }
+    }
+
+    private final float[] x = new float[CAPACITY];
+    private final float[] y = new float[CAPACITY];
+    private final float[] vx = new float[CAPACITY];
+    private final float[] vy = new float[CAPACITY];
+    private final float[] age = new float[CAPACITY];
+    private final float[] life = new float[CAPACITY];
+    private final byte[] size = new byte[CAPACITY];
+    private int count;
+
+    private float originX, originY;
+    private boolean emitting;
+    private float emitDebt;
+    private int seed = 0x2545F491;
+
+    // starts or moves the emitter
+    public void emitFrom(int px, int py) {
+        originX = px;
+        originY = py;
+        emitting = true;
+    }
+
+    // live particles keep fading out after the emitter stops
+    public void stopEmitting() {
+        emitting = false;
+        emitDebt = 0;
+    }
+
+    public boolean isAlive() {
+        return emitting || count > 0;
+    }
+
+    public void clear() {
+        count = 0;
+        stopEmitting();
+    }
+
+    public void update(float dtMs) {
+        dtMs = Math.min(dtMs, MAX_STEP_MS);
+        for (int i = 0; i < count; i++) {
+            age[i] += dtMs;
+            if (age[i] >= life[i]) {
+                // swap the last live particle into this slot
+                count--;
+                x[i] = x[count];
+                y[i] = y[count];
+                vx[i] = vx[count];
+                vy[i] = vy[count];
+                age[i] = age[count];
+                life[i] = life[count];
+                size[i] = size[count];
+                i--;
+                continue;
+            }
+            x[i] += vx[i] * dtMs;
+            y[i] += vy[i] * dtMs;
+        }
+        if (!emitting) return;
+        emitDebt += dtMs * EMIT_PER_MS;
+        while (emitDebt >= 1 && count < CAPACITY) {
+            emitDebt--;
+            int i = count++;
+            x[i] = originX + (random() - 0.5f) * SPREAD;
+            y[i] = originY + (random() - 0.5f) * SPREAD;
+            vx[i] = (random() - 0.5f) * 0.04f;
+            vy[i] = -0.01f - random() * 0.03f;
+            age[i] = 0;
+            life[i] = MIN_LIFE_MS + random() * (MAX_LIFE_MS - MIN_LIFE_MS);
+            size[i] = (byte) (random() * SIZES);
+        }
+        if (emitDebt > 1) emitDebt = 1;
+    }
+
+    // adds the area covered by live particles to r
+    public void addBounds(Rectangle r) {
+        if (count == 0) return;
+        float minX = x[0], minY = y[0], maxX = x[0], maxY = y[0];
+        for (int i = 1; i < count; i++) {
+            minX = Math.min(minX, x[i]);
+            minY = Math.min(minY, y[i]);
+            maxX = Math.max(maxX, x[i]);
+            maxY = Math.max(maxY, y[i]);
+        }
+        Animator.addDamage(r, (int) minX, (int) minY, (int) (maxX - minX) + SIZES + 1, (int) (maxY - minY) + SIZES + 1, 1);
+    }
+
+    public void paint(Graphics2D g2) {
+        for (int i = 0; i < count; i++) {
+            int level = Math.min(LEVELS - 1, (int) ((1 - age[i] / life[i]) * LEVELS));
+            g2.drawImage(SPRITES[size[i] * LEVELS + level], (int) x[i], (int) y[i], null);
+        }
+    }
+
+    // xorshift, uniform in [0, 1)
+    private float random() {
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return (seed >>> 8) / (float) (1 << 24);
+    }
+}
+
+
+- Class PlayPolicy
+import java.util.SplittableRandom;
+
+// Strategy used by SimulationRunner to play a deal. Instances may keep scratch state and are
+// used by one thread at a time.
+public interface PlayPolicy {
+
+    // picks one of count candidate moves, all legal in state and leading to positions not yet
+    // seen this game; returns its index
+    int choose(KlondikeState state, int[] moves, int count, SplittableRandom random);
+
+    // "random", "greedy", "epsilon", "epsilon:<p>", "lookahead" or "lookahead:<depth>"
+    static PlayPolicy named(String name) {
+        if (name.equals("random")) return new RandomPolicy();
+        if (name.equals("greedy")) return new GreedyPolicy();
+        if (name.equals("epsilon")) return new EpsilonGreedyPolicy(0.2);
+        if (name.startsWith("epsilon:")) return new EpsilonGreedyPolicy(Double.parseDouble(name.substring(8)));
+        if (name.equals("lookahead")) return new LookaheadPolicy(2);
+        if (name.startsWith("lookahead:")) return new LookaheadPolicy(Integer.parseInt(name.substring(10)));
+        throw new IllegalArgumentException("unknown policy: " + name);
+    }
+
+    // uniformly random among the candidates
+    class RandomPolicy implements PlayPolicy {
+        @Override
+        public int choose(KlondikeState state, int[] moves, int count, SplittableRandom random) {
+            return random.nextInt(count);
+        }
+    }
+
+    // foundation moves first, then moves that turn a card over, then the generator's order
+    class GreedyPolicy implements PlayPolicy {
+        @Override
+        public int choose(KlondikeState state, int[] moves, int count, SplittableRandom random) {
+            for (int i = 0; i < count; i++) {
+                if (KlondikeState.isFoundation(Move.to(moves[i]))) return i;
+            }
+            for (int i = 0; i < count; i++) {
+                int from = Move.from(moves[i]);
+                if (KlondikeState.isTableau(from) && !KlondikeState.isFoundation(Move.to(moves[i]))
+                        && Move.count(moves[i]) == state.length(from) - state.firstFaceUp(from)
+                        && state.firstFaceUp(from) > 0) {
+                    return i;
+                }
+            }
+            return 0;
+        }
+    }
+
+    // greedy, except that with probability epsilon it plays a random candidate; cheap enough for
+    // many rollouts per deal while still winning a useful share of them
+    class EpsilonGreedyPolicy implements PlayPolicy {
+        private final double epsilon;
+        private final GreedyPolicy greedy = new GreedyPolicy();
+
+        public EpsilonGreedyPolicy(double epsilon) {
+            if (epsilon < 0 || epsilon > 1) throw new IllegalArgumentException("epsilon " + epsilon);
+            this.epsilon = epsilon;
+        }
+
+        @Override
+        public int choose(KlondikeState state, int[] moves, int count, SplittableRandom random) {
+            if (random.nextDouble() < epsilon) return random.nextInt(count);
+            return greedy.choose(state, moves, count, random);
+        }
+    }
+
+    // best evaluation reachable within depth moves, using the hint engine's evaluation
+    class LookaheadPolicy implements PlayPolicy {
+        private final int depth;
+        private final int[] buffer;
+
+        public LookaheadPolicy(int depth) {
+            this.depth = Math.max(1, depth);
+            this.buffer = new int[this.depth * KlondikeState.MAX_MOVES];
+        }
+
+        @Override
+        public int choose(KlondikeState state, int[] moves, int count, SplittableRandom random) {
+            int best = 0;
+            int bestScore = Integer.MIN_VALUE;
+            for (int i = 0; i < count; i++) {
+                int applied = state.apply(moves[i]);
+                int score = search(state, depth - 1, 0);
+                state.unapply(applied);
+                if (score > bestScore) {
+                    best = i;
+                    bestScore = score;
+                }
+            }
+            return best;
+        }
+
+        private int search(KlondikeState state, int remaining, int ply) {
+            if (state.isWon()) return Integer.MAX_VALUE - ply;
+            int best = HintEngine.evaluate(state);
+            if (remaining == 0) return best;
+            int base = ply * KlondikeState.MAX_MOVES;
+            int n = state.generateMoves(buffer, base);
+            for (int i = 0; i < n; i++) {
+                int applied = state.apply(buffer[base + i]);
+                best = Math.max(best, search(state, remaining - 1, ply + 1));
+                state.unapply(applied);
+            }
+            return best;
+        }
+    }
+}
+
+
+- Class SimulationRunner
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Headless batch play: plays a range of deals with a PlayPolicy on every core and streams one
+// CSV line per game to a file, followed by the aggregate win rate.
+public class SimulationRunner {
+
+    public static final int MAX_GAME_MOVES = 1000;
+    private static final int BATCH = 256;
+    private static final long SEED = 0x5DEECE66DL;
+
+    // per-game outcome packed as won(1) | moves(11) | foundation(6)
+    static int play(KlondikeState state, PlayPolicy policy, SplittableRandom random, long[] seen,
+                    int[] moves, int[] candidates) {
+        Arrays.fill(seen, 0);
+        markSeen(seen, state.hash());
+        int played = 0;
+        while (!state.isWon() && played < MAX_GAME_MOVES) {
+            int n = state.generateMoves(moves);
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+                int applied = state.apply(moves[i]);
+                if (!isSeen(seen, state.hash())) candidates[count++] = moves[i];
+                state.unapply(applied);
+            }
+            if (count == 0) break;
+            state.apply(candidates[policy.choose(state, candidates, count, random)]);
+            markSeen(seen, state.hash());
+            played++;
+        }
+        return (state.isWon() ? 1 : 0) | played << 1 | state.foundationCount() << 12;
+    }
+
+    // open-addressing set of position keys visited this game; 0 marks a free slot
+    private static boolean isSeen(long[] seen, long key) {
+        int mask = seen.length - 1;
+        for (int i = (int) key & mask; seen[i] != 0; i = (i + 1) & mask) {
+            if (seen[i] == key) return true;
+        }
+        return false;
+    }
+
+    private static void markSeen(long[] seen, long key) {
+        int mask = seen.length - 1;
+        int i = (int) key & mask;
+        while (seen[i] != 0 && seen[i] != key) i = (i + 1) & mask;
+        seen[i] = key;
+    }
+
+    public static class Summary {
+        public final String policy;
+        public final long games;
+        public final long wins;
+        public final long moves;
+        public final long nanos;
+
+        Summary(String policy, long games, long wins, long moves, long nanos) {
+            this.policy = policy;
+            this.games = games;
+            this.wins = wins;
+            this.moves = moves;
+            this.nanos = nanos;
+        }
+
+        public double winRate() {
+            return games == 0 ? 0 : (double) wins / games;
+        }
+
+        // half-width of the 95% normal-approximation confidence interval
+        public double margin() {
+            double p = winRate();
+            return games == 0 ? 0 : 1.96 * Math.sqrt(p * (1 - p) / games);
+        }
+
+        @Override
+        public String toString() {
+            double secs = nanos / 1e9;
+            return String.format("%s: %d games, %d won, win rate %.4f +- %.4f, %.1f moves/game, %.0f games/s",
+                    policy, games, wins, winRate(), margin(), games == 0 ? 0 : (double) moves / games, games / secs);
+        }
+    }
+
+    // plays deals [firstDeal, firstDeal + games) on threads workers, writing CSV lines to out
+    public static Summary run(String policyName, long firstDeal, long games, int threads, Writer out)
+            throws IOException, InterruptedException {
+        PlayPolicy.named(policyName); // fail fast on a bad name
+        AtomicLong next = new AtomicLong(firstDeal);
+        long end = firstDeal + games;
+        LongAdder wins = new LongAdder();
+        LongAdder moves = new LongAdder();
+        LongAdder done = new LongAdder();
+        BlockingQueue<String> lines = new ArrayBlockingQueue<>(threads * 4);
+        String poison = "";
+
+        out.write("deal,policy,won,moves,foundation,micros\n");
+        long t0 = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        for (int w = 0; w < threads; w++) {
+            pool.execute(() -> {
+                PlayPolicy policy = PlayPolicy.named(policyName);
+                KlondikeState state = new KlondikeState();
+                long[] seen = new long[4096];
+                int[] buffer = new int[KlondikeState.MAX_MOVES];
+                int[] candidates = new int[KlondikeState.MAX_MOVES];
+                StringBuilder sb = new StringBuilder(BATCH * 40);
+                try {
+                    long start;
+                    while ((start = next.getAndAdd(BATCH)) < end) {
+                        sb.setLength(0);
+                        for (long deal = start; deal < Math.min(end, start + BATCH); deal++) {
+                            long g0 = System.nanoTime();
+                            state.deal(deal);
+                            int r = play(state, policy, new SplittableRandom(deal ^ SEED), seen, buffer, candidates);
+                            long micros = (System.nanoTime() - g0) / 1000;
+                            wins.add(r & 1);
+                            moves.add((r >> 1) & 0x7FF);
+                            sb.append(deal).append(',').append(policyName).append(',').append(r & 1).append(',')
+                                    .append((r >> 1) & 0x7FF).append(',').append(r >>> 12).append(',')
+                                    .append(micros).append('\n');
+                        }
+                        lines.put(sb.toString());
+                        done.add(Math.min(end, start + BATCH) - start);
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    try {
+                        lines.put(poison);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+
+        // the calling thread is the writer, so results reach the file while games are still running
+        long lastReport = t0;
+        for (int finished = 0; finished < threads; ) {
+            String batch = lines.poll(1, TimeUnit.SECONDS);
+            if (batch == poison) finished++;
+            else if (batch != null) out.write(batch);
+            long now = System.nanoTime();
+            if (now - lastReport > 2_000_000_000L) {
+                lastReport = now;
+                long d = done.sum();
+                System.err.printf("%d/%d games, win rate %.4f%n", d, games, d == 0 ? 0 : wins.sum() / (double) d);
+            }
+        }
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+        Summary summary = new Summary(policyName, done.sum(), wins.sum(), moves.sum(), System.nanoTime() - t0);
+        out.write("# " + summary + "\n");
+        out.flush();
+        return summary;
+    }
+
+    // usage: SimulationRunner [policy] [games] [firstDeal] [output.csv] [threads]
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String policy = args.length > 0 ? args[0] : "greedy";
+        long games = args.length > 1 ? Long.parseLong(args[1]) : 10_000;
+        long firstDeal = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        Path file = Paths.get(args.length > 3 ? args[3] : "simulation-" + policy.replace(':', '-') + ".csv");
+        int threads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            Summary summary = run(policy, firstDeal, games, threads, out);
+            System.out.println(summary);
+            System.out.println("results: " + file.toAbsolutePath());
+        }
+    }
+}
+
+
+- Class SessionStore
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Game sessions for the server, each a packed position plus a short array of applied moves
+// rather than a panel/pile/card object graph. Sessions idle for longer than idleMillis are
+// written to the spill directory and dropped from memory; the next request reloads them.
+public class SessionStore {
+
+    public static final int MAX_HISTORY = 256;
+
+    public static class Session {
+        final long id;
+        long dealNumber;
+        int drawCount = 1;
+        final byte[] position = new byte[KlondikeState.SNAPSHOT_BYTES];
+        // moves as returned by apply, so undo can reverse card turns; [0, index) are applied
+        short[] log = new short[16];
+        int size;
+        int index;
+        volatile long lastAccess;
+
+        Session(long id) {
+            this.id = id;
+        }
+
+        // approximate heap footprint: object headers, fields and both arrays
+        public int memoryBytes() {
+            return 48 + 16 + position.length + 16 + log.length * 2;
+        }
+
+        void push(int move) {
+            if (index == MAX_HISTORY) {
+                // drop the oldest quarter of the history
+                int drop = MAX_HISTORY / 4;
+                System.arraycopy(log, drop, log, 0, index - drop);
+                index -= drop;
+            }
+            if (index == log.length) log = java.util.Arrays.copyOf(log, Math.min(MAX_HISTORY, log.length * 2));
+            log[index++] = (short) move;
+            size = index;
+        }
+    }
+
+    private final ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<>();
+    // ids start from the clock so they do not collide with sessions spilled by an earlier run
+    private final AtomicLong nextId = new AtomicLong(System.currentTimeMillis() * 1000);
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong reloaded = new AtomicLong();
+    private final Path spillDir;
+    private final long idleMillis;
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "session-sweeper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public SessionStore(Path spillDir, long idleMillis) throws IOException {
+        this.spillDir = Files.createDirectories(spillDir);
+        this.idleMillis = idleMillis;
+        long period = Math.max(1000, idleMillis / 4);
+        sweeper.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public Session create(long dealNumber, int drawCount, KlondikeState scratch) {
+        Session s = new Session(nextId.getAndIncrement());
+        s.dealNumber = dealNumber;
+        s.drawCount = drawCount;
+        scratch.setDrawCount(drawCount);
+        scratch.deal(dealNumber);
+        scratch.writeTo(s.position, 0);
+        s.lastAccess = System.currentTimeMillis();
+        sessions.put(s.id, s);
+        return s;
+    }
+
+    // the session in memory or reloaded from disk, or null if there is none. The access time is
+    // stamped inside compute so evictIdle cannot spill the session between lookup and touch.
+    public Session get(long id) {
+        return sessions.compute(id, (key, s) -> {
+            if (s == null) s = load(key);
+            if (s != null) s.lastAccess = System.currentTimeMillis();
+            return s;
+        });
+    }
+
+    public int inMemory() {
+        return sessions.size();
+    }
+
+    public long evictedCount() {
+        return evicted.get();
+    }
+
+    public long reloadedCount() {
+        return reloaded.get();
+    }
+
+    public long memoryBytes() {
+        long total = 0;
+        for (Session s : sessions.values()) total += s.memoryBytes();
+        return total;
+    }
+
+    public void evictIdle() {
+        long cutoff = System.currentTimeMillis() - idleMillis;
+        for (Session s : sessions.values()) {
+            if (s.lastAccess >= cutoff) continue;
+            sessions.computeIfPresent(s.id, (id, live) -> {
+                synchronized (live) {
+                    if (live.lastAccess >= cutoff) return live;
+                    try {
+                        spill(live);
+                        evicted.incrementAndGet();
+                        return null;
+                    } catch (IOException ex) {
+                        System.err.println("could not evict session " + id + ": " + ex);
+                        return live;
+                    }
+                }
+            });
+        }
+    }
+
+    public void shutdown() {
+        sweeper.shutdownNow();
+    }
+
+    // ==== Spill files ====
+
+    private Path file(long id) {
+        return spillDir.resolve(id + ".session");
+    }
+
+    private void spill(Session s) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(8 + 1 + 4 + 4 + s.position.length + s.size * 2);
+        buf.putLong(s.dealNumber).put((byte) s.drawCount).putInt(s.size).putInt(s.index).put(s.position);
+        for (int i = 0; i < s.size; i++) buf.putShort(s.log[i]);
+        Path tmp = file(s.id).resolveSibling(s.id + ".tmp");
+        Files.write(tmp, buf.array());
+        Files.move(tmp, file(s.id), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Session load(long id) {
+        Path f = file(id);
+        try {
+            if (!Files.exists(f)) return null;
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(f));
+            Session s = new Session(id);
+            s.dealNumber = buf.getLong();
+            s.drawCount = buf.get();
+            s.size = buf.getInt();
+            s.index = buf.getInt();
+            buf.get(s.position);
+            s.log = new short[Math.max(16, s.size)];
+            for (int i = 0; i < s.size; i++) s.log[i] = buf.getShort();
+            Files.delete(f);
+            reloaded.incrementAndGet();
+            return s;
+        } catch (IOException | RuntimeException ex) {
+            System.err.println("could not reload session " + id + ": " + ex);
+            return null;
+        }
+    }
+}
+
+
+- Class SolitaireServer
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.*;
+import java.net.http.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// HTTP endpoint hosting many concurrent games over a shared SessionStore:
+//   POST /new[?deal=N&draw=1|3]   POST /move?id=&from=&to=&count=   POST /undo?id=   POST /redo?id=
+//   GET /state?id=       GET /stats
+// Every response is a small JSON object; positions list each pile bottom to top with
+// face-down cards as -1.
+public class SolitaireServer {
+
+    private final SessionStore store;
+    private final HttpServer http;
+    private final ExecutorService executor;
+    private final ThreadLocal<KlondikeState> scratch = ThreadLocal.withInitial(KlondikeState::new);
+
+    public SolitaireServer(int port, SessionStore store) throws IOException {
+        // small replies otherwise sit in Nagle's buffer waiting for a delayed ACK (~40 ms)
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        this.store = store;
+        this.executor = newPerTaskExecutor();
+        this.http = HttpServer.create(new InetSocketAddress(port), 1024);
+        http.setExecutor(executor);
+        http.createContext("/new", this::handleNew);
+        http.createContext("/move", ex -> handleSession(ex, Op.MOVE));
+        http.createContext("/undo", ex -> handleSession(ex, Op.UNDO));
+        http.createContext("/redo", ex -> handleSession(ex, Op.REDO));
+        http.createContext("/state", ex -> handleSession(ex, Op.STATE));
+        http.createContext("/stats", this::handleStats);
+    }
+
+    // a virtual thread per exchange where the runtime has them (Java 21+), otherwise a cached
+    // pool of platform threads
+    static ExecutorService newPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    public void start() {
+        http.start();
+    }
+
+    public void stop() {
+        http.stop(0);
+        executor.shutdownNow();
+        store.shutdown();
+    }
+
+    public int getPort() {
+        return http.getAddress().getPort();
+    }
+
+    private enum Op { MOVE, UNDO, REDO, STATE }
+
+    private void handleNew(HttpExchange ex) throws IOException {
+        Map<String, String> q = query(ex);
+        long deal;
+        try {
+            deal = q.containsKey("deal") ? Long.parseLong(q.get("deal")) : Deals.randomDealNumber();
+        } catch (NumberFormatException ex2) {
+            reply(ex, 400, "{\"error\":\"bad deal\"}");
+            return;
+        }
+        int draw = "3".equals(q.get("draw")) ? 3 : 1;
+        KlondikeState state = scratch.get();
+        SessionStore.Session s = store.create(deal, draw, state);
+        String body;
+        synchronized (s) {
+            body = json(s, state);
+        }
+        reply(ex, 200, body);
+    }
+
+    private void handleSession(HttpExchange ex, Op op) throws IOException {
+        Map<String, String> q = query(ex);
+        long id;
+        try {
+            id = Long.parseLong(q.get("id"));
+        } catch (NumberFormatException ex2) {
+            reply(ex, 400, "{\"error\":\"bad id\"}");
+            return;
+        }
+        int move = 0;
+        if (op == Op.MOVE) {
+            // range-check before packing, or an oversized field spills into the next one's bits
+            move = parseMove(q);
+            if (move < 0) {
+                reply(ex, 400, "{\"error\":\"bad move\"}");
+                return;
+            }
+        }
+        SessionStore.Session s = store.get(id);
+        if (s == null) {
+            reply(ex, 404, "{\"error\":\"no such session\"}");
+            return;
+        }
+        KlondikeState state = scratch.get();
+        int status = 200;
+        String body;
+        synchronized (s) {
+            state.setDrawCount(s.drawCount);
+            state.readFrom(s.position, 0);
+            if (op == Op.MOVE) {
+                if (state.isLegal(move)) {
+                    s.push(state.apply(move));
+                } else {
+                    status = 409;
+                }
+            } else if (op == Op.UNDO) {
+                if (s.index > 0) state.unapply(s.log[--s.index] & 0xFFFF);
+                else status = 409;
+            } else if (op == Op.REDO) {
+                if (s.index < s.size) state.apply(s.log[s.index++] & 0xFFFF);
+                else status = 409;
+            }
+            if (status == 200 && op != Op.STATE) state.writeTo(s.position, 0);
+            body = json(s, state);
+        }
+        reply(ex, status, body);
+    }
+
+    // the packed move named by from/to/count, or -1 if a field is missing or out of range
+    private static int parseMove(Map<String, String> q) {
+        try {
+            int from = Integer.parseInt(q.get("from"));
+            int to = Integer.parseInt(q.get("to"));
+            int count = Integer.parseInt(q.get("count"));
+            if (from < 0 || from >= KlondikeState.PILE_COUNT || to < 0 || to >= KlondikeState.PILE_COUNT) return -1;
+            if (count < 1 || count > KlondikeState.CARD_COUNT) return -1;
+            return Move.of(from, to, count);
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private void handleStats(HttpExchange ex) throws IOException {
+        int n = store.inMemory();
+        long bytes = store.memoryBytes();
+        reply(ex, 200, "{\"sessions\":" + n + ",\"bytes\":" + bytes + ",\"bytesPerSession\":" + (n == 0 ? 0 : bytes / n)
+                + ",\"evicted\":" + store.evictedCount() + ",\"reloaded\":" + store.reloadedCount() + "}");
+    }
+
+    private static String json(SessionStore.Session s, KlondikeState state) {
+        StringBuilder sb = new StringBuilder(400);
+        sb.append("{\"id\":").append(s.id).append(",\"deal\":").append(s.dealNumber)
+                .append(",\"draw\":").append(s.drawCount)
+                .append(",\"moves\":").append(s.index).append(",\"redo\":").append(s.size - s.index)
+                .append(",\"won\":").append(state.isWon()).append(",\"piles\":[");
+        for (int p = 0; p < KlondikeState.PILE_COUNT; p++) {
+            if (p > 0) sb.append(',');
+            sb.append('[');
+            for (int i = 0; i < state.length(p); i++) {
+                int card = state.cardAt(p, i);
+                if (i > 0) sb.append(',');
+                sb.append(p == KlondikeState.STOCK || !state.isFaceUp(card) ? -1 : card);
+            }
+            sb.append(']');
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static Map<String, String> query(HttpExchange ex) {
+        Map<String, String> map = new HashMap<>();
+        String raw = ex.getRequestURI().getRawQuery();
+        if (raw == null) return map;
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) map.put(pair.substring(0, eq), pair.substring(eq + 1));
+        }
+        return map;
+    }
+
+    private static void reply(HttpExchange ex, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "application/json");
+        ex.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    // ==== Load test ====
+
+    // plays sessions concurrently against a server with the greedy policy, mirroring each game
+    // locally to pick legal moves, and reports move latency percentiles
+    public static void loadTest(String base, int sessions, int movesPerSession, int concurrency)
+            throws InterruptedException {
+        HttpClient client = HttpClient.newBuilder().executor(newPerTaskExecutor()).build();
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        long[] latencies = new long[sessions * movesPerSession];
+        AtomicInteger recorded = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        long t0 = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+            long deal = i + 1;
+            pool.execute(() -> {
+                try {
+                    String created = send(client, base + "/new?deal=" + deal);
+                    String id = created.substring(created.indexOf(':') + 1, created.indexOf(','));
+                    KlondikeState mirror = new KlondikeState();
+                    mirror.deal(deal);
+                    PlayPolicy policy = new PlayPolicy.GreedyPolicy();
+                    int[] moves = new int[KlondikeState.MAX_MOVES];
+                    for (int m = 0; m < movesPerSession; m++) {
+                        int n = mirror.generateMoves(moves);
+                        if (n == 0 || mirror.isWon()) break;
+                        int move = moves[policy.choose(mirror, moves, n, null)];
+                        long s0 = System.nanoTime();
+                        send(client, base + "/move?id=" + id + "&from=" + Move.from(move) + "&to=" + Move.to(move)
+                                + "&count=" + Move.count(move));
+                        latencies[recorded.getAndIncrement()] = System.nanoTime() - s0;
+                        mirror.apply(move);
+                    }
+                } catch (IOException | InterruptedException | RuntimeException ex) {
+                    errors.incrementAndGet();
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.HOURS);
+        double secs = (System.nanoTime() - t0) / 1e9;
+        int n = recorded.get();
+        long[] sorted = Arrays.copyOf(latencies, n);
+        Arrays.sort(sorted);
+        System.out.printf("%d sessions, %d moves in %.2fs (%.0f moves/s), %d errors%n",
+                sessions, n, secs, n / secs, errors.get());
+        if (n > 0) {
+            System.out.printf("move latency p50 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+                    sorted[n / 2] / 1e6, sorted[Math.min(n - 1, (int) (n * 0.99))] / 1e6, sorted[n - 1] / 1e6);
+        }
+    }
+
+    private static String send(HttpClient client, String uri) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(uri)).POST(HttpRequest.BodyPublishers.noBody()).build();
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) throw new IOException("HTTP " + response.statusCode() + " for " + uri);
+        return response.body();
+    }
+
+    // usage: SolitaireServer [port] [idleSeconds] [spillDir]
+    //        SolitaireServer loadtest [baseUrl] [sessions] [movesPerSession] [concurrency]
+    // without a base URL the load test starts its own server on a free port
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("loadtest")) {
+            String base = args.length > 1 && args[1].startsWith("http") ? args[1] : null;
+            int a = base == null ? 1 : 2;
+            int sessions = args.length > a ? Integer.parseInt(args[a]) : 2000;
+            int moves = args.length > a + 1 ? Integer.parseInt(args[a + 1]) : 50;
+            int concurrency = args.length > a + 2 ? Integer.parseInt(args[a + 2]) : 64;
+            SolitaireServer local = null;
+            if (base == null) {
+                local = new SolitaireServer(0, new SessionStore(Files.createTempDirectory("sessions"), 60_000));
+                local.start();
+                base = "http://localhost:" + local.getPort();
+            }
+            loadTest(base, sessions, moves, concurrency);
+            if (local != null) {
+                System.out.println("server: " + local.store.inMemory() + " sessions, "
+                        + local.store.memoryBytes() / Math.max(1, local.store.inMemory()) + " bytes each");
+                local.stop();
+            }
+            return;
+        }
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        long idle = args.length > 1 ? Long.parseLong(args[1]) * 1000 : 300_000;
+        Path spill = Paths.get(args.length > 2 ? args[2] : "sessions");
+        SolitaireServer server = new SolitaireServer(port, new SessionStore(spill, idle));
+        server.start();
+        System.out.println("listening on port " + server.getPort());
+    }
+}
+
+
+- Class Histogram
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Log-linear histogram in the style of HdrHistogram: each power of two is split into
+// SUB_BUCKETS linear buckets, so any recorded value is reported within 1/SUB_BUCKETS of its
+// true size, from 1 up to Long.MAX_VALUE, in a fixed 4 KB of counters. Recording is a few
+// shifts and one atomic increment; readers on other threads see a consistent-enough view.
+public class Histogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private volatile long total;
+    private volatile long sum;
+    private volatile long max;
+
+    // single writer: values are recorded from the EDT only
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(index(value));
+        total++;
+        sum += value;
+        if (value > max) max = value;
+    }
+
+    public long count() { return total; }
+    public long max() { return max; }
+
+    public double mean() {
+        long n = total;
+        return n == 0 ? 0 : (double) sum / n;
+    }
+
+    // upper bound of the bucket holding the given fraction (0-1) of recorded values
+    public long percentile(double fraction) {
+        long n = total;
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(max, upperBound(i));
+        }
+        return max;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+        total = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        int sub = (int) (value >>> exp) - SUB_BUCKETS;
+        return (exp + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int exp = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << exp) - 1;
+    }
+}
+
+
+- Class PaintMetricsMBean
+// JMX view of PaintMetrics; times are in milliseconds, allocation in bytes
+public interface PaintMetricsMBean {
+    long getFrameCount();
+    double getFrameTimeP50Millis();
+    double getFrameTimeP99Millis();
+    double getFrameTimeMaxMillis();
+    double getInputLatencyP50Millis();
+    double getInputLatencyP99Millis();
+    double getInputLatencyMaxMillis();
+    double getCardsPerFrameMean();
+    long getCardsPerFrameMax();
+    double getSpriteHitRate();
+    long getAllocatedBytesPerFrameP50();
+    long getAllocatedBytesPerFrameP99();
+    void reset();
+}
+
+
+- Class PaintMetrics
+import java.lang.management.ManagementFactory;
+import javax.management.ObjectName;
+
+// Frame time, input-to-paint latency, cards drawn and allocation per frame, recorded by
+// GamePanel around each paint and published as the MBean "solitaire:type=PaintMetrics".
+// Everything is recorded on the EDT; JMX reads the histograms from its own threads.
+public class PaintMetrics implements PaintMetricsMBean {
+
+    public static final String OBJECT_NAME = "solitaire:type=PaintMetrics";
+
+    private final Histogram frameNanos = new Histogram();
+    private final Histogram inputNanos = new Histogram();
+    private final Histogram cardsPerFrame = new Histogram();
+    private final Histogram bytesPerFrame = new Histogram();
+    private final com.sun.management.ThreadMXBean threads;
+
+    private long frameStart;
+    private long allocStart;
+    private long spritesStart;
+    private long pendingInput;
+    private long hitsAtReset;
+    private long missesAtReset;
+
+    public PaintMetrics() {
+        java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        threads = mx instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) mx).isThreadAllocatedMemorySupported()
+                ? (com.sun.management.ThreadMXBean) mx : null;
+    }
+
+    // registers with the platform MBean server; failures only disable the JMX view
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (Exception ex) {
+            System.err.println("could not register " + OBJECT_NAME + ": " + ex);
+        }
+    }
+
+    // an input event whose effect the next frame will show; when the event was queued
+    // (AWT timestamp in ms) is folded in so time waiting on the EDT counts as well
+    public void inputEvent(long whenMillis) {
+        if (pendingInput != 0) return; // keep the oldest event not yet painted
+        long queued = Math.max(0, System.currentTimeMillis() - whenMillis);
+        pendingInput = System.nanoTime() - queued * 1_000_000;
+    }
+
+    public void frameStart() {
+        spritesStart = CardSprites.hits() + CardSprites.misses();
+        if (threads != null) allocStart = threads.getCurrentThreadAllocatedBytes();
+        frameStart = System.nanoTime();
+    }
+
+    public void frameEnd() {
+        long now = System.nanoTime();
+        frameNanos.record(now - frameStart);
+        cardsPerFrame.record(CardSprites.hits() + CardSprites.misses() - spritesStart);
+        if (threads != null) bytesPerFrame.record(threads.getCurrentThreadAllocatedBytes() - allocStart);
+        if (pendingInput != 0) {
+            inputNanos.record(now - pendingInput);
+            pendingInput = 0;
+        }
+    }
+
+    // a few lines for the on-screen overlay
+    public String[] summary() {
+        return new String[] {
+            String.format("frame p50 %.2f  p99 %.2f  max %.2f ms", getFrameTimeP50Millis(), getFrameTimeP99Millis(), getFrameTimeMaxMillis()),
+            String.format("input p50 %.2f  p99 %.2f ms", getInputLatencyP50Millis(), getInputLatencyP99Millis()),
+            String.format("cards/frame %.1f  sprite hits %.1f%%", getCardsPerFrameMean(), getSpriteHitRate() * 100),
+            threads == null ? "alloc/frame n/a"
+                    : String.format("alloc/frame p50 %d  p99 %d B", getAllocatedBytesPerFrameP50(), getAllocatedBytesPerFrameP99()),
+        };
+    }
+
+    @Override public long getFrameCount() { return frameNanos.count(); }
+    @Override public double getFrameTimeP50Millis() { return frameNanos.percentile(0.5) / 1e6; }
+    @Override public double getFrameTimeP99Millis() { return frameNanos.percentile(0.99) / 1e6; }
+    @Override public double getFrameTimeMaxMillis() { return frameNanos.max() / 1e6; }
+    @Override public double getInputLatencyP50Millis() { return inputNanos.percentile(0.5) / 1e6; }
+    @Override public double getInputLatencyP99Millis() { return inputNanos.percentile(0.99) / 1e6; }
+    @Override public double getInputLatencyMaxMillis() { return inputNanos.max() / 1e6; }
+    @Override public double getCardsPerFrameMean() { return cardsPerFrame.mean(); }
+    @Override public long getCardsPerFrameMax() { return cardsPerFrame.max(); }
+    @Override public long getAllocatedBytesPerFrameP50() { return bytesPerFrame.percentile(0.5); }
+    @Override public long getAllocatedBytesPerFrameP99() { return bytesPerFrame.percentile(0.99); }
+
+    @Override
+    public double getSpriteHitRate() {
+        long hits = CardSprites.hits() - hitsAtReset;
+        long misses = CardSprites.misses() - missesAtReset;
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    @Override
+    public void reset() {
+        frameNanos.reset();
+        inputNanos.reset();
+        cardsPerFrame.reset();
+        bytesPerFrame.reset();
+        hitsAtReset = CardSprites.hits();
+        missesAtReset = CardSprites.misses();
+    }
+}
+
+
+- Class DealIndex
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.LongStream;
+
+// Monte Carlo difficulty ratings for a range of deals. Each deal is played many times from its
+// opening layout with a randomized policy; the share of rollouts won is its rating, and any won
+// rollout proves the deal winnable. A deal no rollout wins goes to KlondikeSolver with a node
+// budget, which either solves it, proves it unsolvable, or leaves it unknown. Ratings are
+// fixed-size records read through a memory map, so a lookup is one absolute read and the index
+// stays off the heap however many deals it holds.
+public class DealIndex {
+
+    public static final int MAGIC = 0x574D5349; // "WMSI"
+    // version 2 adds the solver: UNSOLVABLE flags and the node budget in the header. Version 1
+    // files have the same layout and read as won or unknown.
+    public static final int VERSION = 2;
+    public static final int HEADER_BYTES = 32;
+    // rollouts won (2 bytes), best foundation count over all rollouts (1), flags (1)
+    public static final int RECORD_BYTES = 4;
+    // a rollout or the solver won the deal; without either flag its solvability is unknown
+    public static final int WINNABLE = 1;
+    public static final int UNSOLVABLE = 2;
+
+    public static final String POLICY = "epsilon";
+    public static final int DEFAULT_ROLLOUTS = 64;
+    public static final long DEFAULT_SOLVER_NODES = 200_000;
+    private static final int SOLVER_TABLE_BITS = 18;
+
+    // share of rollouts won that makes a deal easy, and below which a winnable deal is hard;
+    // with the default policy about 8% of draw-one deals are easy and 20% hard
+    public static final double EASY_RATE = 0.2;
+    public static final double HARD_RATE = 0.05;
+
+    private static final int CHUNK = 4096;
+    private static final int PROBES = 256;
+
+    public enum Kind { ANY, EASY, HARD, WINNABLE }
+
+    private final ByteBuffer map;
+    private final int drawCount;
+    private final long firstDeal;
+    private final long count;
+    private final int rollouts;
+    private final long solverNodes;
+
+    private DealIndex(ByteBuffer map, int drawCount, long firstDeal, long count, int rollouts, long solverNodes) {
+        this.map = map;
+        this.drawCount = drawCount;
+        this.firstDeal = firstDeal;
+        this.count = count;
+        this.rollouts = rollouts;
+        this.solverNodes = solverNodes;
+    }
+
+    // maps the file read-only; the mapping outlives the channel
+    public static DealIndex open(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size < HEADER_BYTES) throw new IOException("not a deal index: " + file);
+            if (size > Integer.MAX_VALUE) throw new IOException("deal index too large to map: " + file);
+            ByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (map.getInt(0) != MAGIC) throw new IOException("not a deal index: " + file);
+            int version = map.getShort(4);
+            if (version != 1 && version != VERSION) throw new IOException("unsupported deal index version " + version);
+            int draw = map.getShort(6);
+            long first = map.getLong(8);
+            long count = map.getLong(16);
+            int rollouts = map.getInt(24);
+            long solverNodes = version == 1 ? 0 : map.getInt(28) & 0xFFFFFFFFL;
+            if (HEADER_BYTES + count * RECORD_BYTES > size) throw new IOException("truncated deal index: " + file);
+            return new DealIndex(map, draw, first, count, rollouts, solverNodes);
+        }
+    }
+
+    public int getDrawCount() {
+        return drawCount;
+    }
+
+    public long getFirstDeal() {
+        return firstDeal;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public int getRollouts() {
+        return rollouts;
+    }
+
+    // node budget the solver had for each deal no rollout won; 0 if it did not run
+    public long getSolverNodes() {
+        return solverNodes;
+    }
+
+    public boolean contains(long dealNumber) {
+        return dealNumber - firstDeal >= 0 && dealNumber - firstDeal < count;
+    }
+
+    public int wins(long dealNumber) {
+        return map.getShort(position(dealNumber)) & 0xFFFF;
+    }
+
+    public double winRate(long dealNumber) {
+        return rollouts == 0 ? 0 : (double) wins(dealNumber) / rollouts;
+    }
+
+    public int bestFoundation(long dealNumber) {
+        return map.get(position(dealNumber) + 2);
+    }
+
+    public boolean isWinnable(long dealNumber) {
+        return (map.get(position(dealNumber) + 3) & WINNABLE) != 0;
+    }
+
+    // the solver exhausted the deal's positions without a win
+    public boolean isUnsolvable(long dealNumber) {
+        return (map.get(position(dealNumber) + 3) & UNSOLVABLE) != 0;
+    }
+
+    public boolean matches(long dealNumber, Kind kind) {
+        switch (kind) {
+            case EASY: return winRate(dealNumber) >= EASY_RATE;
+            case HARD: return isWinnable(dealNumber) && winRate(dealNumber) < HARD_RATE;
+            case WINNABLE: return isWinnable(dealNumber);
+            default: return true;
+        }
+    }
+
+    // a random deal of the given kind, or -1 if the index holds none. Random probes find any
+    // common kind in a few reads; a scan from a random start covers the rare ones.
+    public long pick(Kind kind) {
+        if (count == 0) return -1;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < PROBES; i++) {
+            long deal = firstDeal + random.nextLong(count);
+            if (matches(deal, kind)) return deal;
+        }
+        long start = random.nextLong(count);
+        for (long i = 0; i < count; i++) {
+            long deal = firstDeal + (start + i) % count;
+            if (matches(deal, kind)) return deal;
+        }
+        return -1;
+    }
+
+    private int position(long dealNumber) {
+        if (!contains(dealNumber)) throw new IndexOutOfBoundsException("deal " + dealNumber + " not indexed");
+        return (int) (HEADER_BYTES + (dealNumber - firstDeal) * RECORD_BYTES);
+    }
+
+    // ==== Building ====
+
+    // per-thread rollout scratch, reused across every deal the thread rates
+    private static class Rollouts {
+        final KlondikeState start = new KlondikeState();
+        final KlondikeState state = new KlondikeState();
+        final PlayPolicy policy = PlayPolicy.named(POLICY);
+        final long[] seen = new long[4096];
+        final int[] moves = new int[KlondikeState.MAX_MOVES];
+        final int[] candidates = new int[KlondikeState.MAX_MOVES];
+        final ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK * RECORD_BYTES);
+    }
+
+    private static final ThreadLocal<Rollouts> ROLLOUTS = ThreadLocal.withInitial(Rollouts::new);
+
+    // plays the rollouts of one deal into dst as one record; a deal none of them wins is handed
+    // to the solver, if there is one
+    static void rate(Rollouts r, long dealNumber, int drawCount, int rollouts, KlondikeSolver solver, ByteBuffer dst) {
+        r.start.setDrawCount(drawCount);
+        r.start.deal(dealNumber);
+        int wins = 0;
+        int best = 0;
+        for (int i = 0; i < rollouts; i++) {
+            r.state.copyFrom(r.start);
+            SplittableRandom random = new SplittableRandom(dealNumber * 0x9E3779B97F4A7C15L + i);
+            int result = SimulationRunner.play(r.state, r.policy, random, r.seen, r.moves, r.candidates);
+            wins += result & 1;
+            best = Math.max(best, result >>> 12);
+        }
+        int flags = wins > 0 ? WINNABLE : 0;
+        if (flags == 0 && solver != null) {
+            KlondikeSolver.Outcome outcome = solver.solve(r.start).outcome;
+            if (outcome == KlondikeSolver.Outcome.SOLVED) flags = WINNABLE;
+            else if (outcome == KlondikeSolver.Outcome.UNSOLVABLE) flags = UNSOLVABLE;
+        }
+        dst.putShort((short) wins).put((byte) best).put((byte) flags);
+    }
+
+    // rates count deals starting at firstDeal, one chunk of deals per task on all cores, each chunk
+    // written at its own offset. solverNodes 0 skips the solver.
+    public static void writeFile(Path file, long firstDeal, long count, int drawCount, int rollouts,
+                                 long solverNodes, LongAdder progress) throws IOException {
+        if (drawCount != 1 && drawCount != 3) throw new IllegalArgumentException("draw " + drawCount);
+        if (rollouts < 1 || rollouts > 0xFFFF) throw new IllegalArgumentException("rollouts " + rollouts);
+        if (solverNodes < 0 || solverNodes > 0xFFFFFFFFL) throw new IllegalArgumentException("solver nodes " + solverNodes);
+        // the solve runs inside the parallel stream's worker and shares its pool
+        KlondikeSolver solver = solverNodes == 0 ? null
+                : new KlondikeSolver(ForkJoinPool.commonPool(), SOLVER_TABLE_BITS, solverNodes);
+        if (HEADER_BYTES + count * RECORD_BYTES > Integer.MAX_VALUE) throw new IllegalArgumentException("count " + count);
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putShort((short) VERSION).putShort((short) drawCount)
+                    .putLong(firstDeal).putLong(count).putInt(rollouts).putInt((int) solverNodes).flip();
+            writeFully(ch, header, 0);
+
+            long chunks = (count + CHUNK - 1) / CHUNK;
+            LongStream.range(0, chunks).parallel().forEach(chunk -> {
+                long start = chunk * CHUNK;
+                int n = (int) Math.min(CHUNK, count - start);
+                Rollouts r = ROLLOUTS.get();
+                ByteBuffer buf = r.chunk;
+                buf.clear();
+                for (int i = 0; i < n; i++) {
+                    rate(r, firstDeal + start + i, drawCount, rollouts, solver, buf);
+                    if (progress != null) progress.increment();
+                }
+                buf.flip();
+                try {
+                    writeFully(ch, buf, HEADER_BYTES + start * RECORD_BYTES);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        }
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) position += ch.write(buf, position);
+    }
+
+    public static String fileName(int drawCount) {
+        return "deals-draw" + drawCount + ".idx";
+    }
+
+    // usage: DealIndex <count> [firstDeal] [drawCount] [rollouts] [solverNodes] [file]
+    public static void main(String[] args) throws IOException {
+        long count = args.length > 0 ? Long.parseLong(args[0]) : 100_000L;
+        long first = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        int draw = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        int rollouts = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_ROLLOUTS;
+        long solverNodes = args.length > 4 ? Long.parseLong(args[4]) : DEFAULT_SOLVER_NODES;
+        Path file = Paths.get(args.length > 5 ? args[5] : fileName(draw));
+
+        LongAdder progress = new LongAdder();
+        Thread reporter = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(2000);
+                    System.err.printf("%d/%d deals rated%n", progress.sum(), count);
+                }
+            } catch (InterruptedException ex) {
+                // done
+            }
+        }, "deal-index-progress");
+        reporter.setDaemon(true);
+        reporter.start();
+
+        long t0 = System.nanoTime();
+        writeFile(file, first, count, draw, rollouts, solverNodes, progress);
+        double secs = (System.nanoTime() - t0) / 1e9;
+        reporter.interrupt();
+
+        DealIndex index = open(file);
+        long easy = 0, hard = 0, winnable = 0, unsolvable = 0;
+        for (long deal = first; deal < first + count; deal++) {
+            if (index.matches(deal, Kind.EASY)) easy++;
+            if (index.matches(deal, Kind.HARD)) hard++;
+            if (index.matches(deal, Kind.WINNABLE)) winnable++;
+            if (index.isUnsolvable(deal)) unsolvable++;
+        }
+        System.out.printf("%d deals x %d rollouts (draw %d) -> %s (%d bytes) in %.2fs, %.0f deals/s%n",
+                count, rollouts, draw, file, Files.size(file), secs, count / secs);
+        System.out.printf("easy %d, hard %d, winnable %d (%.1f%%), unsolvable %d, unknown %d%n",
+                easy, hard, winnable, count == 0 ? 0 : winnable * 100.0 / count, unsolvable,
+                count - winnable - unsolvable);
+    }
+}
+
+
+- Class CardAtlas
+import javax.imageio.ImageIO;
+import javax.swing.SwingUtilities;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+// All card art packed into one file: a header, an index of named rectangles, then a single PNG
+// sheet. The game maps the file and decodes the sheet on a background thread, so startup never
+// waits on disk or on the number of art files; cards draw their vector fallbacks meanwhile.
+public class CardAtlas {
+
+    public static final int MAGIC = 0x574D5341; // "WMSA"
+    public static final int VERSION = 1;
+    public static final String FILE = "cards.atlas";
+
+    // blank pixels between packed images so bilinear scaling never samples a neighbour
+    private static final int GAP = 2;
+
+    private CardAtlas() {
+    }
+
+    // ==== Loading ====
+
+    // loads the art in the background and installs it on the EDT; the future completes there.
+    // Uses dir/cards.atlas, or the loose PNGs in dir when no atlas has been packed.
+    public static CompletableFuture<Void> loadAsync(Path dir) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        Thread loader = new Thread(() -> {
+            Map<String, BufferedImage> art;
+            try {
+                Path atlas = dir.resolve(FILE);
+                art = Files.exists(atlas) ? read(atlas) : readLoose(dir);
+            } catch (IOException | RuntimeException ex) {
+                System.err.println("could not load card art: " + ex);
+                art = Collections.emptyMap();
+            }
+            Map<String, BufferedImage> loaded = art;
+            SwingUtilities.invokeLater(() -> {
+                Card.setArt(loaded);
+                CardSprites.invalidate();
+                done.complete(null);
+            });
+        }, "card-art");
+        loader.setDaemon(true);
+        loader.start();
+        return done;
+    }
+
+    // maps the atlas and cuts the decoded sheet into its named images
+    public static Map<String, BufferedImage> read(Path file) throws IOException {
+        ByteBuffer map;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        if (map.remaining() < 12 || map.getInt() != MAGIC) throw new IOException("not a card atlas: " + file);
+        int version = map.getShort();
+        if (version != VERSION) throw new IOException("unsupported card atlas version " + version);
+        int entries = map.getShort();
+        String[] names = new String[entries];
+        int[] rects = new int[entries * 4];
+        for (int i = 0; i < entries; i++) {
+            byte[] name = new byte[map.get() & 0xFF];
+            map.get(name);
+            names[i] = new String(name, StandardCharsets.UTF_8);
+            for (int k = 0; k < 4; k++) rects[i * 4 + k] = map.getShort() & 0xFFFF;
+        }
+        int length = map.getInt();
+        if (length > map.remaining()) throw new IOException("truncated card atlas: " + file);
+        ByteBuffer png = map.slice();
+        png.limit(length);
+
+        BufferedImage sheet = ImageIO.read(new BufferInputStream(png));
+        if (sheet == null) throw new IOException("undecodable card atlas sheet: " + file);
+        Map<String, BufferedImage> art = new HashMap<>();
+        for (int i = 0; i < entries; i++) {
+            art.put(names[i], sheet.getSubimage(rects[i * 4], rects[i * 4 + 1], rects[i * 4 + 2], rects[i * 4 + 3]));
+        }
+        return art;
+    }
+
+    // every readable PNG in dir, keyed by file name without the extension
+    static Map<String, BufferedImage> readLoose(Path dir) throws IOException {
+        Map<String, BufferedImage> art = new TreeMap<>();
+        if (!Files.isDirectory(dir)) return art;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.png")) {
+            for (Path f : files) {
+                BufferedImage im = null;
+                try {
+                    im = ImageIO.read(f.toFile());
+                } catch (IOException ex) {
+                    // reported below like any other unreadable file
+                }
+                String name = f.getFileName().toString();
+                if (im != null) art.put(name.substring(0, name.length() - 4), im);
+                else System.err.println("skipping unreadable card art " + f);
+            }
+        }
+        return art;
+    }
+
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        BufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buf.hasRemaining()) return -1;
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+
+    // ==== Packing ====
+
+    // shelf-packs the images, tallest first, into one sheet and writes the atlas
+    public static void pack(Map<String, BufferedImage> art, Path file) throws IOException {
+        List<String> names = new ArrayList<>(art.keySet());
+        names.sort((a, b) -> art.get(b).getHeight() - art.get(a).getHeight());
+        long area = 0;
+        int widest = 0;
+        for (BufferedImage im : art.values()) {
+            area += (long) (im.getWidth() + GAP) * (im.getHeight() + GAP);
+            widest = Math.max(widest, im.getWidth() + GAP);
+        }
+        int sheetWidth = Math.max(widest, (int) Math.ceil(Math.sqrt(area)));
+
+        int[] rects = new int[names.size() * 4];
+        int x = 0, y = 0, shelf = 0;
+        for (int i = 0; i < names.size(); i++) {
+            BufferedImage im = art.get(names.get(i));
+            if (x + im.getWidth() > sheetWidth) {
+                x = 0;
+                y += shelf + GAP;
+                shelf = 0;
+            }
+            rects[i * 4] = x;
+            rects[i * 4 + 1] = y;
+            rects[i * 4 + 2] = im.getWidth();
+            rects[i * 4 + 3] = im.getHeight();
+            x += im.getWidth() + GAP;
+            shelf = Math.max(shelf, im.getHeight());
+        }
+        int sheetHeight = Math.max(1, y + shelf);
+        if (sheetWidth > 0xFFFF || sheetHeight > 0xFFFF) throw new IOException("card art too large for one sheet");
+
+        BufferedImage sheet = new BufferedImage(Math.max(1, sheetWidth), sheetHeight, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = sheet.createGraphics();
+        for (int i = 0; i < names.size(); i++) g.drawImage(art.get(names.get(i)), rects[i * 4], rects[i * 4 + 1], null);
+        g.dispose();
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(sheet, "png", png);
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                byte[] name = names.get(i).getBytes(StandardCharsets.UTF_8);
+                if (name.length > 0xFF) throw new IOException("art name too long: " + names.get(i));
+                out.writeByte(name.length);
+                out.write(name);
+                for (int k = 0; k < 4; k++) out.writeShort(rects[i * 4 + k]);
+            }
+            out.writeInt(png.size());
+            png.writeTo(out);
+        }
+    }
+
+    // usage: CardAtlas [imagesDir] [atlasFile]
+    public static void main(String[] args) throws IOException {
+        Path dir = Paths.get(args.length > 0 ? args[0] : "images");
+        Path file = args.length > 1 ? Paths.get(args[1]) : dir.resolve(FILE);
+
+        Map<String, BufferedImage> art = readLoose(dir);
+        if (art.isEmpty()) {
+            System.err.println("no PNG art in " + dir.toAbsolutePath());
+            return;
+        }
+        long t0 = System.nanoTime();
+        pack(art, file);
+        System.out.printf("%d images -> %s (%d bytes) in %.1fms%n",
+                art.size(), file, Files.size(file), (System.nanoTime() - t0) / 1e6);
+    }
+}
+
+
+- Class BoardLayout
+// Geometry of the board for one panel size and device scale. Everything is derived from a
+// 760 x 720 base design zoomed to fit the panel and centred; tableau columns too long for the
+// space below them are squeezed. Immutable; the panel builds a new
+// one when its size or screen changes.
+public class BoardLayout {
+
+    private static final int BASE_WIDTH = 760;
+    private static final int BASE_HEIGHT = 720;
+    private static final double MIN_ZOOM = 0.4;
+
+    public final int width;
+    public final int height;
+    public final double scale;
+    public final double zoom;
+
+    public final int cardWidth;
+    public final int cardHeight;
+    public final int gap;
+    public final int left;
+    public final int top;
+    public final int tableauTop;
+    public final int titleBaseline;
+    public final int titleSize;
+    // spacing of a tableau column with room to spare, and the tightest it is squeezed to
+    public final int tableauOffset;
+    public final int minTableauOffset;
+    public final int wasteFan;
+    public final int arc;
+
+    private final int tableauSpace;
+
+    public BoardLayout(int width, int height, double scale) {
+        this.width = width;
+        this.height = height;
+        this.scale = scale;
+        zoom = Math.max(MIN_ZOOM, Math.min((double) width / BASE_WIDTH, (double) height / BASE_HEIGHT));
+
+        cardWidth = px(80);
+        cardHeight = px(110);
+        gap = px(20);
+        left = Math.max(px(40), (width - 7 * cardWidth - 6 * gap) / 2);
+        top = px(40);
+        tableauTop = top + cardHeight + px(40);
+        titleBaseline = px(30);
+        titleSize = px(28);
+        tableauOffset = px(25);
+        minTableauOffset = Math.max(3, px(8));
+        wasteFan = px(18);
+        arc = px(16);
+        tableauSpace = height - tableauTop - px(20) - cardHeight;
+    }
+
+    private int px(double base) {
+        return (int) Math.round(base * zoom);
+    }
+
+    public int columnX(int column) {
+        return left + column * (cardWidth + gap);
+    }
+
+    public int pileX(int pile) {
+        if (pile == KlondikeState.STOCK) return columnX(0);
+        if (pile == KlondikeState.WASTE) return columnX(1);
+        if (KlondikeState.isFoundation(pile)) return columnX(3 + pile - KlondikeState.FOUNDATION);
+        return columnX(pile - KlondikeState.TABLEAU);
+    }
+
+    public int pileY(int pile) {
+        return KlondikeState.isTableau(pile) ? tableauTop : top;
+    }
+
+    // distance between the cards of a tableau column holding size cards, squeezed so the
+    // column ends above the bottom margin
+    public int tableauOffset(int size) {
+        if (size <= 1) return tableauOffset;
+        return Math.max(minTableauOffset, Math.min(tableauOffset, tableauSpace / (size - 1)));
+    }
+
+    public boolean fits(int width, int height, double scale) {
+        return width == this.width && height == this.height && scale == this.scale;
+    }
+}
+
+
+- Class GameState
+import java.util.Arrays;
+
+// An immutable Klondike position. apply() returns a new state that shares every pile the move
+// did not touch, so a move costs two small arrays rather than a copy of the board, and a state
+// can be handed to another thread without locking. States do not link to their predecessors;
+// GamePanel keeps earlier ones by move number, bounded like the MoveManager history, and steps
+// back to them on undo. Search still runs on a mutable KlondikeState; toState() makes one.
+public final class GameState implements KlondikePosition {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    // one array per pile, bottom card first; never written after construction
+    private final byte[][] piles;
+    private final long faceUp;
+    private final long hash;
+    private final int drawCount;
+
+    private GameState(byte[][] piles, long faceUp, long hash, int drawCount) {
+        this.piles = piles;
+        this.faceUp = faceUp;
+        this.hash = hash;
+        this.drawCount = drawCount;
+    }
+
+    public static GameState of(KlondikeState s) {
+        byte[][] piles = new byte[KlondikeState.PILE_COUNT][];
+        for (int p = 0; p < KlondikeState.PILE_COUNT; p++) {
+            int n = s.length(p);
+            byte[] pile = n == 0 ? EMPTY : new byte[n];
+            for (int i = 0; i < n; i++) pile[i] = (byte) s.cardAt(p, i);
+            piles[p] = pile;
+        }
+        return new GameState(piles, s.faceUpMask(), s.hash(), s.getDrawCount());
+    }
+
+    public KlondikeState toState() {
+        KlondikeState s = new KlondikeState();
+        s.copyFrom(this);
+        return s;
+    }
+
+    // ==== Queries ====
+
+    public int length(int pile) { return piles[pile].length; }
+    public int cardAt(int pile, int index) { return piles[pile][index]; }
+    public boolean isFaceUp(int card) { return (faceUp & (1L << card)) != 0; }
+    public long faceUpMask() { return faceUp; }
+    public long hash() { return hash; }
+    public int getDrawCount() { return drawCount; }
+
+    public int top(int pile) {
+        byte[] cards = piles[pile];
+        return cards.length == 0 ? -1 : cards[cards.length - 1];
+    }
+
+    public boolean isWon() {
+        int n = 0;
+        for (int f = KlondikeState.FOUNDATION; f < KlondikeState.TABLEAU; f++) n += piles[f].length;
+        return n == KlondikeState.CARD_COUNT;
+    }
+
+    // equal when every pile, the face-up cards and the draw count match. Unlike hash(), this
+    // tells apart positions that differ only in which column or foundation holds a stack.
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) return true;
+        if (!(o instanceof GameState)) return false;
+        GameState other = (GameState) o;
+        if (hash != other.hash || faceUp != other.faceUp || drawCount != other.drawCount) return false;
+        for (int p = 0; p < KlondikeState.PILE_COUNT; p++) {
+            // shared piles are the same array, so most of these are a reference check
+            if (piles[p] != other.piles[p] && !Arrays.equals(piles[p], other.piles[p])) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(hash) * 31 + drawCount;
+    }
+
+    // ==== Moves ====
+
+    public boolean isLegal(int move) {
+        return KlondikeState.isLegal(this, move);
+    }
+
+    // the position after a legal move; only the two piles it touches are new arrays.
+    // Flag bits on the move are ignored, so moves recorded by KlondikeState.apply replay here.
+    public GameState apply(int move) {
+        int plain = Move.of(Move.from(move), Move.to(move), Move.count(move));
+        if (Move.cycled(move) || !isLegal(plain)) {
+            throw new IllegalArgumentException("illegal move " + Move.from(move) + "->" + Move.to(move) + " x" + Move.count(move));
+        }
+        int from = Move.from(plain);
+        int to = Move.to(plain);
+        int count = Move.count(plain);
+        byte[] src = piles[from];
+        byte[] dst = piles[to];
+        byte[] left = src.length == count ? EMPTY : Arrays.copyOf(src, src.length - count);
+        byte[] grown = Arrays.copyOf(dst, dst.length + count);
+        long mask = faceUp;
+        long h = hash;
+
+        if (from == KlondikeState.STOCK || to == KlondikeState.STOCK) {
+            // drawn cards turn face up one by one onto the waste; a recycle turns the whole
+            // waste back over, so both reverse the order
+            for (int i = 0; i < count; i++) {
+                byte c = src[src.length - 1 - i];
+                grown[dst.length + i] = c;
+                mask ^= 1L << c;
+                h ^= KlondikeState.placement(c, KlondikeState.WASTE, -1);
+            }
+        } else {
+            System.arraycopy(src, src.length - count, grown, dst.length, count);
+            int c = src[src.length - count];
+            int below = src.length > count ? src[src.length - count - 1] : -1;
+            h ^= KlondikeState.placement(c, from, below) ^ KlondikeState.placement(c, to, top(to));
+            if (KlondikeState.isTableau(from) && left.length > 0) {
+                int t = left[left.length - 1];
+                if ((mask & (1L << t)) == 0) {
+                    mask |= 1L << t;
+                    h ^= KlondikeState.faceDownKey(t);
+                }
+            }
+        }
+
+        byte[][] next = piles.clone();
+        next[from] = left;
+        next[to] = grown;
+        return new GameState(next, mask, h, drawCount);
+    }
+}